@@ -0,0 +1,166 @@
+package de.heisluft.modding;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Provides realistic inputs for benchmarks.
+ */
+public final class BenchmarkData {
+
+  private BenchmarkData() {}
+
+  /**
+   * Locates a minecraft jar to benchmark against. The system property {@code benchmark.mcJar} takes precedence,
+   * followed by the newest jar cached by MCRepo. If neither exists, a synthetic jar shaped like an Infdev jar is written
+   * to a temporary file.
+   *
+   * @return the path to the jar
+   * @throws IOException if the synthetic jar could not be written
+   */
+  public static Path minecraftJar() throws IOException {
+    String override = System.getProperty("benchmark.mcJar");
+    if(override != null) return Paths.get(override);
+    String gradleHome = System.getProperty("gradle.user.home", System.getenv("GRADLE_USER_HOME"));
+    Path repo = (gradleHome != null ? Paths.get(gradleHome) : Paths.get(System.getProperty("user.home"), ".gradle"))
+        .resolve("caches").resolve("classic_modding").resolve("mc_repo");
+    if(Files.isDirectory(repo)) try(Stream<Path> jars = Files.list(repo)) {
+      Optional<Path> newest = jars.filter(p -> p.getFileName().toString().startsWith("minecraft-"))
+          .max(Comparator.comparing(p -> p.toFile().lastModified()));
+      if(newest.isPresent()) return newest.get();
+    }
+    Path synthetic = Files.createTempFile("synthetic-minecraft", ".jar");
+    synthetic.toFile().deleteOnExit();
+    writeSyntheticJar(synthetic);
+    return synthetic;
+  }
+
+  /**
+   * Writes a jar with the entry layout of an Infdev client: obfuscated classes in the default package, a few
+   * unobfuscated entry points, bundled sound libraries and textures.
+   *
+   * @param target the path to write to
+   * @throws IOException if the jar could not be written
+   */
+  public static void writeSyntheticJar(Path target) throws IOException {
+    Random random = new Random(42);
+    List<String> names = new ArrayList<>();
+    names.add("META-INF/MANIFEST.MF");
+    for(int i = 0; i < 450; i++) names.add(obfName(i) + ".class");
+    for(String s : new String[]{"Minecraft", "MinecraftApplet", "d", "e"}) names.add("net/minecraft/client/" + s + ".class");
+    names.add("net/minecraft/isom/IsomPreviewApplet.class");
+    for(int i = 0; i < 120; i++) names.add("paulscode/sound/" + (i < 60 ? "" : "codecs/") + "Class" + i + ".class");
+    for(int i = 0; i < 80; i++) names.add("com/jcraft/jorbis/Class" + i + ".class");
+    for(int i = 0; i < 40; i++) names.add("com/jcraft/jogg/Class" + i + ".class");
+    for(String dir : new String[]{"", "gui/", "mob/", "item/", "armor/", "environment/", "misc/", "terrain/", "art/"})
+      for(int i = 0; i < 12; i++) names.add(dir + "texture" + i + ".png");
+    names.add("font.txt");
+    names.add("title/splashes.txt");
+    try(OutputStream os = Files.newOutputStream(target); ZipOutputStream zos = new ZipOutputStream(os)) {
+      for(String name : names) {
+        zos.putNextEntry(new ZipEntry(name));
+        byte[] data = new byte[name.endsWith(".png") ? 2048 + random.nextInt(8192) : 512 + random.nextInt(4096)];
+        // Half random, half zero, so data compresses like real class files
+        for(int i = 0; i < data.length / 2; i++) data[i] = (byte) random.nextInt(256);
+        zos.write(data);
+        zos.closeEntry();
+      }
+    }
+  }
+
+  /**
+   * Writes a source tree shaped like a decompiled Infdev client: about 600 classes of 150 lines on average, spread
+   * over a handful of packages.
+   *
+   * @param root the directory to write to
+   * @return the paths of all written files, relative to root
+   * @throws IOException if a file could not be written
+   */
+  public static List<String> writeSyntheticSources(Path root) throws IOException {
+    Random random = new Random(42);
+    String[] packages = {"net/minecraft/client", "net/minecraft/src", "net/minecraft/world", "net/minecraft/entity",
+        "net/minecraft/block", "net/minecraft/item", "net/minecraft/gui", "net/minecraft/render", "com/mojang/nbt"};
+    List<String> files = new ArrayList<>();
+    for(int i = 0; i < 600; i++) {
+      String pkg = packages[i % packages.length];
+      String name = "Class" + obfName(i).toUpperCase();
+      String rel = pkg + "/" + name + ".java";
+      Path file = root.resolve(rel);
+      Files.createDirectories(file.getParent());
+      StringBuilder src = new StringBuilder("package ").append(pkg.replace('/', '.')).append(";\n\n");
+      src.append("import java.util.ArrayList;\nimport java.util.List;\n\n");
+      src.append("public class ").append(name).append(" {\n");
+      int fields = 3 + random.nextInt(12);
+      for(int f = 0; f < fields; f++) src.append("   private int field_").append(f).append(" = ").append(random.nextInt(100)).append(";\n");
+      int methods = 3 + random.nextInt(10);
+      for(int m = 0; m < methods; m++) {
+        src.append("\n   public int method_").append(m).append("(int var1, int var2) {\n");
+        int statements = 2 + random.nextInt(10);
+        for(int st = 0; st < statements; st++) {
+          int field = random.nextInt(fields);
+          switch(random.nextInt(4)) {
+            case 0: src.append("      this.field_").append(field).append(" += var1 * ").append(random.nextInt(16)).append(";\n"); break;
+            case 1: src.append("      if(var2 > ").append(random.nextInt(64)).append(") {\n         var1 = this.field_").append(field).append(" >> 2;\n      }\n"); break;
+            case 2: src.append("      for(int var3 = 0; var3 < var2; ++var3) {\n         this.field_").append(field).append(" ^= var3;\n      }\n"); break;
+            default: src.append("      var2 = (int)((float)var2 * 0.").append(random.nextInt(1000)).append("F);\n");
+          }
+        }
+        src.append("      return var1 + var2;\n   }\n");
+      }
+      src.append("}\n");
+      Files.write(file, src.toString().getBytes(StandardCharsets.UTF_8));
+      files.add(rel);
+    }
+    return files;
+  }
+
+  /**
+   * Copies a source tree written by {@link #writeSyntheticSources(Path)}, changing every tenth file the way a mod would:
+   * inserting lines at a few places and editing some others.
+   *
+   * @param from the tree to copy
+   * @param files the files within the tree
+   * @param to the directory to copy to
+   * @throws IOException if a file could not be read or written
+   */
+  public static void writeModifiedCopy(Path from, List<String> files, Path to) throws IOException {
+    Random random = new Random(1337);
+    for(int i = 0; i < files.size(); i++) {
+      Path target = to.resolve(files.get(i));
+      Files.createDirectories(target.getParent());
+      if(i % 10 != 0) {
+        Files.copy(from.resolve(files.get(i)), target, StandardCopyOption.REPLACE_EXISTING);
+        continue;
+      }
+      List<String> lines = new ArrayList<>(Files.readAllLines(from.resolve(files.get(i)), StandardCharsets.UTF_8));
+      for(int change = 0; change < 5; change++) {
+        int at = 5 + random.nextInt(lines.size() - 6);
+        if(random.nextBoolean()) lines.add(at, "      ModHooks.onTick(this, var1);");
+        else lines.set(at, lines.get(at).replace("var1", "var2"));
+      }
+      Files.write(target, lines, StandardCharsets.UTF_8);
+    }
+  }
+
+  private static String obfName(int index) {
+    StringBuilder builder = new StringBuilder();
+    do {
+      builder.append((char) ('a' + index % 26));
+      index = index / 26 - 1;
+    } while(index >= 0);
+    return builder.reverse().toString();
+  }
+}
@@ -0,0 +1,65 @@
+package de.heisluft.modding.tasks;
+
+import de.heisluft.modding.BenchmarkData;
+import de.heisluft.modding.util.Util;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Measures generating patches with {@link Differ} and applying them with {@link Patcher} on a source tree of minecraft
+ * size in which every tenth file was modified. Neither run can reuse the state of a previous one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PatchBenchmark {
+  private Path root, origSrc, modSrc, patches, patchedSrc;
+  private List<Path> patchFiles;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    root = Files.createTempDirectory("benchmark-patches");
+    origSrc = root.resolve("orig");
+    modSrc = root.resolve("modified");
+    patches = Files.createDirectories(root.resolve("patches"));
+    patchedSrc = Files.createDirectories(root.resolve("patched"));
+    List<String> files = BenchmarkData.writeSyntheticSources(origSrc);
+    BenchmarkData.writeModifiedCopy(origSrc, files, modSrc);
+    Differ.diffAll(origSrc, modSrc, patches, Map.of(), Map.of());
+    try(Stream<Path> s = Files.list(patches)) {
+      patchFiles = s.collect(Collectors.toList());
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void clearPatched() throws IOException {
+    Util.deleteContents(patchedSrc.toFile());
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Util.deleteContents(root.toFile());
+    Files.delete(root);
+  }
+
+  @Benchmark
+  public Map<String, String> diff() throws IOException {
+    return Differ.diffAll(origSrc, modSrc, patches, Map.of(), Map.of());
+  }
+
+  @Benchmark
+  public Map<String, String> patch() throws IOException {
+    return Patcher.patchAll(origSrc, patchFiles, patchedSrc, Map.of(), false);
+  }
+}
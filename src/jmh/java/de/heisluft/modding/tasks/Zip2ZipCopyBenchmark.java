@@ -0,0 +1,48 @@
+package de.heisluft.modding.tasks;
+
+import de.heisluft.modding.BenchmarkData;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Zip2ZipCopy#doExec(File, File, List)} copying a minecraft jar with the include patterns of
+ * stripLibraries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Zip2ZipCopyBenchmark {
+  private static final List<String> STRIP_PATTERNS = Arrays.asList("util/**", "com/mojang/**", "net/minecraft/**", "a/**", "com/a/**");
+
+  private File input, output;
+
+  @Setup
+  public void setup() throws IOException {
+    input = BenchmarkData.minecraftJar().toFile();
+    output = Files.createTempFile("benchmark-stripped", ".jar").toFile();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(output.toPath());
+  }
+
+  @Benchmark
+  public void stripLibraries() throws IOException {
+    Zip2ZipCopy.doExec(input, output, STRIP_PATTERNS);
+  }
+
+  @Benchmark
+  public void copyAll() throws IOException {
+    Zip2ZipCopy.doExec(input, output, List.of());
+  }
+}
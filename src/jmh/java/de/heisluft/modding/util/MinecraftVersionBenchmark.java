@@ -0,0 +1,59 @@
+package de.heisluft.modding.util;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parsing and sorting the version strings of all classic, indev and infdev releases, as done when resolving
+ * the dependencies of a version.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MinecraftVersionBenchmark {
+  private static final List<String> VERSIONS = Arrays.asList(
+      "c0.0.11a", "c0.0.12a_03", "c0.0.13a", "c0.0.13a_03", "c0.0.14a_08", "c0.0.15a", "c0.0.16a_02", "c0.0.17a",
+      "c0.0.18a_02", "c0.0.19a_04", "c0.0.19a_06", "c0.0.20a_01", "c0.0.21a", "c0.0.22a_05", "c0.0.23a_01", "c0.24_st_03",
+      "c0.25_05_st", "c0.26_st", "c0.27_st", "c0.28_01", "c0.29", "c0.29_01", "c0.29_02", "c0.30_01c", "c0.30_02",
+      "in-20091223-1457", "in-20091223-1459", "in-20091231-2255", "in-20100104-2258", "in-20100110", "in-20100124-2310",
+      "in-20100125", "in-20100128-2304", "in-20100129-1452", "in-20100130", "in-20100131-2244", "in-20100201-0025",
+      "in-20100202-2330", "in-20100206-2103", "in-20100207-1057", "in-20100212-1622", "in-20100213", "in-20100214",
+      "in-20100218", "in-20100219", "in-20100223", "inf-20100227-1414", "inf-20100313", "inf-20100316", "inf-20100320",
+      "inf-20100321", "inf-20100325-1640", "inf-20100327", "inf-20100330-1611", "inf-20100413", "inf-20100414",
+      "inf-20100415", "inf-20100420", "inf-20100607", "inf-20100608", "inf-20100611", "inf-20100615", "inf-20100616-1808",
+      "inf-20100617-1531", "inf-20100618", "inf-20100624", "inf-20100625-1917", "inf-20100627", "inf-20100629",
+      "inf-20100630-1835"
+  );
+
+  private List<MinecraftVersion> parsed;
+
+  @Setup
+  public void setup() {
+    parsed = new ArrayList<>();
+    for(String version : VERSIONS) parsed.add(MinecraftVersion.of(version));
+    // Sorting an already sorted list would only take a single pass
+    Collections.shuffle(parsed, new Random(42));
+  }
+
+  @Benchmark
+  public void of(Blackhole bh) {
+    for(String version : VERSIONS) bh.consume(MinecraftVersion.of(version));
+  }
+
+  @Benchmark
+  public List<MinecraftVersion> compareTo() {
+    List<MinecraftVersion> sorted = new ArrayList<>(parsed);
+    Collections.sort(sorted);
+    return sorted;
+  }
+}
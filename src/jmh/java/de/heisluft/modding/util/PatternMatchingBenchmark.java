@@ -0,0 +1,65 @@
+package de.heisluft.modding.util;
+
+import de.heisluft.modding.BenchmarkData;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compares the per-pattern regex predicates of {@link Util#parsePattern(String)} against {@link GlobMatcher}, testing
+ * every entry of a minecraft jar against the include patterns of stripLibraries and extractAssets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PatternMatchingBenchmark {
+  private static final List<String> PATTERNS = Arrays.asList(
+      "util/**", "com/mojang/**", "net/minecraft/**", "a/**", "com/a/**", "**.png", "**.md3", "**.MD3", "**.gif"
+  );
+
+  private FileSystem jarFs;
+  private List<Path> paths;
+  private List<String> names;
+  private Set<Predicate<Path>> regexPatterns;
+  private GlobMatcher matcher;
+
+  @Setup
+  public void setup() throws IOException {
+    jarFs = Util.createFS(BenchmarkData.minecraftJar().toFile(), false);
+    try(Stream<Path> s = Files.walk(jarFs.getPath("/"))) {
+      paths = s.filter(Files::isRegularFile).collect(Collectors.toList());
+    }
+    names = paths.stream().map(p -> p.toString().substring(1)).collect(Collectors.toList());
+    regexPatterns = PATTERNS.stream().map(Util::parsePattern).collect(Collectors.toSet());
+    matcher = GlobMatcher.compile(PATTERNS);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    jarFs.close();
+  }
+
+  @Benchmark
+  public void regexSet(Blackhole bh) {
+    for(Path path : paths) bh.consume(regexPatterns.stream().anyMatch(p -> p.test(path)));
+  }
+
+  @Benchmark
+  public void globMatcher(Blackhole bh) {
+    for(String name : names) bh.consume(matcher.matches(name));
+  }
+}
@@ -0,0 +1,78 @@
+package de.heisluft.modding.util;
+
+import de.heisluft.modding.BenchmarkData;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Measures the helpers of {@link Util} which run once per file of the pipeline: hex encoding the digest of every jar
+ * entry, and clearing a directory of minecraft sources.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UtilBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Digests {
+    private List<byte[]> digests;
+
+    @Setup
+    public void setup() throws IOException {
+      digests = new ArrayList<>();
+      try(ZipFile zip = new ZipFile(BenchmarkData.minecraftJar().toFile())) {
+        for(ZipEntry entry : Collections.list(zip.entries())) digests.add(Hashing.sha512(entry.getName().getBytes(StandardCharsets.UTF_8)));
+      }
+    }
+  }
+
+  /**
+   * A source tree which is rewritten before every invocation, as deleting it is what's measured.
+   */
+  @State(Scope.Thread)
+  public static class SourceTree {
+    private Path root;
+
+    @Setup(Level.Trial)
+    public void createRoot() throws IOException {
+      root = Files.createTempDirectory("benchmark-sources");
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() throws IOException {
+      BenchmarkData.writeSyntheticSources(root);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteRoot() throws IOException {
+      Util.deleteContents(root.toFile());
+      Files.delete(root);
+    }
+  }
+
+  @Benchmark
+  public void bytesToHex(Digests digests, Blackhole bh) {
+    for(byte[] digest : digests.digests) bh.consume(Util.bytesToHex(digest));
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Measurement(iterations = 20)
+  public void deleteContents(SourceTree tree) throws IOException {
+    Util.deleteContents(tree.root.toFile());
+  }
+}
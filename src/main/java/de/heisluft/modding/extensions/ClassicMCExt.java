@@ -10,8 +10,26 @@ public abstract class ClassicMCExt {
   public abstract Property<String> getVersion();
   public abstract Property<String> getServerVersion();
   public abstract Property<String> getMappingType();
+  /**
+   * Whether DeobfTools should be run within reusable Gradle worker daemons instead of forking a JVM per task.
+   * Independent tasks may then also run concurrently.
+   */
+  public abstract Property<Boolean> getUseWorkerDaemons();
+  /**
+   * Whether the jar processing steps should be run as a single task, without writing intermediate jars to the build dir.
+   * Only supported by the JarModDev plugin.
+   */
+  public abstract Property<Boolean> getFuseJarPipeline();
+  /**
+   * Whether the outputs of DeobfTools tasks should be shared via a global cache, so that projects with the same
+   * minecraft version, mappings and ATs only process the jar once.
+   */
+  public abstract Property<Boolean> getUseArtifactCache();
 
   public ClassicMCExt() {
     getMappingType().convention(FERGIE);
+    getUseWorkerDaemons().convention(false);
+    getFuseJarPipeline().convention(false);
+    getUseArtifactCache().convention(true);
   }
 }
@@ -0,0 +1,33 @@
+package de.heisluft.modding.extensions;
+
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+
+/**
+ * Configures the version matrix of the {@code de.heisluft.modding.classic.matrix} settings plugin.
+ */
+public abstract class ClassicMatrixExt {
+  public static final String JAR_MOD_DEV = "de.heisluft.modding.classic.jarmoddev", DEOBF_DATA_DEV = "de.heisluft.modding.classic.deobfdatadev";
+
+  /**
+   * The versions to create a workspace project for.
+   */
+  public abstract ListProperty<String> getVersions();
+  /**
+   * The id of the plugin applied to every workspace, either {@link #JAR_MOD_DEV} or {@link #DEOBF_DATA_DEV}.
+   */
+  public abstract Property<String> getPlugin();
+  /**
+   * The directory the workspaces are created in, relative to the root dir. Each workspace is named after its version.
+   */
+  public abstract Property<String> getDirectory();
+  /**
+   * The mapping type of all workspaces. If unset, the default of {@link ClassicMCExt} is used.
+   */
+  public abstract Property<String> getMappingType();
+
+  public ClassicMatrixExt() {
+    getPlugin().convention(DEOBF_DATA_DEV);
+    getDirectory().convention("versions");
+  }
+}
@@ -2,10 +2,13 @@ package de.heisluft.modding.plugins;
 
 import de.heisluft.modding.extensions.ClassicMCExt;
 import de.heisluft.modding.repo.MCRepo;
+import de.heisluft.modding.services.DeobfToolsService;
+import de.heisluft.modding.services.PipelineMetrics;
 import de.heisluft.modding.tasks.*;
-import de.heisluft.modding.util.ArtifactIdentifier;
-import de.heisluft.modding.util.MinecraftVersion;
+import de.heisluft.modding.util.GcLogArguments;
+import de.heisluft.modding.util.MavenMetaUtil;
 import de.heisluft.modding.util.Util;
+import de.heisluft.modding.util.VersionRules;
 import org.gradle.api.Action;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
@@ -14,16 +17,18 @@ import org.gradle.api.Transformer;
 import org.gradle.api.artifacts.Configuration;
 import org.gradle.api.artifacts.Dependency;
 import org.gradle.api.artifacts.DependencySet;
-import org.gradle.api.artifacts.ResolvedArtifact;
+import org.gradle.api.artifacts.result.ResolvedArtifactResult;
 import org.gradle.api.artifacts.dsl.DependencyHandler;
 import org.gradle.api.file.Directory;
 import org.gradle.api.file.DuplicatesStrategy;
+import org.gradle.api.file.ProjectLayout;
 import org.gradle.api.file.RegularFile;
-import org.gradle.api.file.RegularFileProperty;
 import org.gradle.api.plugins.JavaPlugin;
 import org.gradle.api.plugins.JavaPluginExtension;
 import org.gradle.api.provider.Property;
 import org.gradle.api.provider.Provider;
+import org.gradle.api.provider.ProviderFactory;
+import org.gradle.build.event.BuildEventsListenerRegistry;
 import org.gradle.api.tasks.*;
 import org.gradle.api.tasks.compile.JavaCompile;
 import org.gradle.jvm.tasks.Jar;
@@ -33,14 +38,18 @@ import org.gradle.jvm.toolchain.JavaToolchainSpec;
 import org.gradle.process.CommandLineArgumentProvider;
 
 import javax.annotation.Nonnull;
+import javax.inject.Inject;
 import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -48,10 +57,31 @@ import static de.heisluft.modding.extensions.ClassicMCExt.FERGIE;
 import static de.heisluft.modding.extensions.ClassicMCExt.SOURCE;
 
 /**
- * A plugin implementation providing shared tasks among plugins related to classic modding
+ * A plugin implementation providing shared tasks among plugins related to classic modding.
+ *
+ * All task actions and specs configured here must stay compatible with the configuration cache: they may only capture
+ * providers, files and plain values, never the project, tasks or plugin instances.
  */
 public abstract class BasePlugin implements Plugin<Project> {
   public static final String REPO_URL = "https://heisluft.de/maven/";
+  /**
+   * The tasks whose runs are recorded by {@link PipelineMetrics}
+   */
+  public static final List<String> PIPELINE_STAGES = List.of("stripLibraries", "restoreMeta", "remapJarFrg",
+      "applyAts", "decompMC", "extractSrc", "applyCompilerPatches", "copySrc", "genPatches");
+  /**
+   * The sound libraries of each version. J-Ogg is used from classic c0.0.22a until the end of classic, it is replaced
+   * with paulscode starting with indev versions from 2010.
+   */
+  private static final VersionRules<List<String>> SOUND_LIBRARIES = new VersionRules<List<String>>()
+      .add("c0.0.22a..<in-20091223", List.of("de.jarnbjo:j-ogg-mc:1.0.1"))
+      .add("in-20100104..", List.of(
+          "com.paulscode:Paulscode-SoundSystem:1.0.1",
+          "com.paulscode:CodecWav:1.0.1",
+          "com.paulscode:CodecJOrbis:1.0.3",
+          "com.paulscode:LibraryLWJGLOpenAL:1.0.1",
+          "com.paulscode:LibraryJavaSound:1.0.1"
+      ));
 
   /**
    * Generates an action configuring a toolchain to use the specified java language version.
@@ -68,9 +98,20 @@ public abstract class BasePlugin implements Plugin<Project> {
    */
   protected SourceSet mcSourceSet;
   /**
-   * The location of the deobf tools jar
+   * The deobf tools jar. It is resolved on first use by the shared {@link DeobfToolsService}
    */
-  protected File deobfToolsJarFile;
+  protected Provider<RegularFile> deobfToolsJar;
+  /**
+   * The service resolving the deobf tools jar. Tasks using {@link #deobfToolsJar} should declare its usage
+   */
+  protected Provider<DeobfToolsService> deobfToolsService;
+  private File mcRepoDir, metadataCacheDir;
+  private Duration metadataTtl;
+  private int downloadSegments;
+
+  @Inject
+  protected abstract BuildEventsListenerRegistry getEventsListenerRegistry();
+
   /**
    * @inheritDoc
    *
@@ -78,21 +119,21 @@ public abstract class BasePlugin implements Plugin<Project> {
    */
   @Override
   public void apply(Project project) {
-    System.out.println("Auto-downloading DeobfTools...");
-    File deobfToolsDir = project.getLayout().getBuildDirectory().file("downloadDeobfTools").get().getAsFile();
-    deobfToolsDir.mkdirs();
-    try {
-      MavenDownload.manualDownload(
-          REPO_URL,
-          new ArtifactIdentifier("de.heisluft.deobf.tooling", "DeobfTools", "latest", "all", null),
-          deobfToolsJarFile = new File(deobfToolsDir, "DeobfTools.jar")
-      );
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
-    System.out.println("DONE");
+    Duration metadataTtl = this.metadataTtl = metadataTtl(project);
+    File metadataCacheDir = this.metadataCacheDir = Util.getCache(project.getGradle(), "maven_meta").toFile();
+    File storeDir = Util.getCache(project.getGradle(), "maven_store").toFile();
+    File mcRepoDir = this.mcRepoDir = Util.getCache(project.getGradle(), "mc_repo").toFile();
+    deobfToolsService = project.getGradle().getSharedServices().registerIfAbsent("deobfTools", DeobfToolsService.class, spec -> {
+      spec.getParameters().getRepoUrl().set(REPO_URL);
+      spec.getParameters().getVersion().set("latest");
+      spec.getParameters().getStoreDir().set(storeDir);
+      spec.getParameters().getMetadataCacheDir().set(metadataCacheDir);
+      spec.getParameters().getTtl().set(metadataTtl);
+    });
+    deobfToolsJar = project.getLayout().file(deobfToolsService.map(DeobfToolsService::getJar));
 
-    MCRepo.init(project.getGradle(), REPO_URL);
+    // Large jars may be downloaded in several parallel segments, this is off by default
+    int downloadSegments = this.downloadSegments = project.getProviders().gradleProperty("classicModding.downloadSegments").map(Integer::parseInt).getOrElse(1);
     // Java Plugin needs to be applied first as we want to configure it
     project.getPluginManager().apply(JavaPlugin.class);
     JavaPluginExtension javaExt = project.getExtensions().getByType(JavaPluginExtension.class);
@@ -133,18 +174,7 @@ public abstract class BasePlugin implements Plugin<Project> {
     mcImplDeps.addAllLater(versionProp.map(version -> {
       List<Dependency> deps = new ArrayList<>();
       //deps.add(d.create("com.mojang:minecraft-assets:" + version));
-      // Sound dependencies. Jogg is only used from classic c0.0.22+ to c0.30,
-      // It is replaced with paulscode starting indev versions from 2010
-      MinecraftVersion mcVersion = MinecraftVersion.of(version);
-      if(!version.startsWith("in") && mcVersion.compareTo(MinecraftVersion.of("c0.0.22a")) >= 0)
-        deps.add(d.create("de.jarnbjo:j-ogg-mc:1.0.1"));
-      else if(mcVersion.compareTo(MinecraftVersion.of("in-20100104")) >= 0) {
-        deps.add(d.create("com.paulscode:Paulscode-SoundSystem:1.0.1"));
-        deps.add(d.create("com.paulscode:CodecWav:1.0.1"));
-        deps.add(d.create("com.paulscode:CodecJOrbis:1.0.3"));
-        deps.add(d.create("com.paulscode:LibraryLWJGLOpenAL:1.0.1"));
-        deps.add(d.create("com.paulscode:LibraryJavaSound:1.0.1"));
-      }
+      for(List<String> libraries : SOUND_LIBRARIES.lookup(version)) for(String library : libraries) deps.add(d.create(library));
       return deps;
     }));
     // ModLauncher and BSL
@@ -159,9 +189,21 @@ public abstract class BasePlugin implements Plugin<Project> {
     // setup shared tasks
     TaskContainer tasks = project.getTasks();
 
+    tasks.withType(MavenDownload.class).configureEach(task -> {
+      task.getDownloadSegments().convention(downloadSegments);
+      task.getMetadataCacheDir().convention(project.getLayout().dir(project.provider(() -> metadataCacheDir)));
+      task.getMetadataTtl().convention(metadataTtl);
+    });
+    tasks.withType(OutputtingJavaExec.class).configureEach(task -> {
+      task.getUseWorkerDaemon().convention(mcExt.getUseWorkerDaemons());
+      task.getUseArtifactCache().convention(mcExt.getUseArtifactCache());
+      task.usesService(deobfToolsService);
+    });
+
     tasks.getByName("classes").dependsOn(tasks.getByName(mcSourceSet.getClassesTaskName()));
 
     TaskProvider<Zip2ZipCopy> stripLibraries = tasks.register("stripLibraries", Zip2ZipCopy.class, task -> {
+      task.mustRunAfter("prefetch");
       task.getIncludedPaths().add("util/**");
       task.getIncludedPaths().add("com/mojang/**");
       task.getIncludedPaths().add("net/minecraft/**");
@@ -171,54 +213,61 @@ public abstract class BasePlugin implements Plugin<Project> {
 
     TaskProvider<RestoreMeta> restoreMeta = tasks.register("restoreMeta", RestoreMeta.class, task -> {
       task.getInput().set(stripLibraries.get().getOutput());
-      task.classpath(deobfToolsJarFile);
+      task.classpath(deobfToolsJar);
     });
 
     TaskProvider<RemapTask> remapJarFrg = tasks.register("remapJarFrg", RemapTask.class, task -> {
-      task.classpath(deobfToolsJarFile);
+      task.classpath(deobfToolsJar);
       task.getInput().set(restoreMeta.get().getOutput());
       task.setOutputFilename("minecraft-mapped-fergie.jar");
     });
 
     TaskProvider<ATApply> applyAts = tasks.register("applyAts", ATApply.class, task -> {
-      task.classpath(deobfToolsJarFile);
+      task.classpath(deobfToolsJar);
       task.getInput().set(remapJarFrg.get().getOutput());
-      // This cant be a lambda because Gradle will shit itself otherwise
-      //noinspection Convert2Lambda
-      task.doLast(new Action<>() {
-        @Override
-        public void execute(@Nonnull Task t) {
-          RegularFileProperty out = ((OutputtingJavaExec) t).getOutput();
-          if(!out.getAsFile().get().exists()) return;
-          TaskContainer tc = t.getProject().getTasks();
-          if(t.getProject().getExtensions().getByType(ClassicMCExt.class).getMappingType().get().equals(FERGIE))
-            tc.withType(Decomp.class).getByName("decompMC", task -> task.getInput().set(out));
-          else
-            tc.withType(RemapTask.class).getByName("remapJarSrc", task -> task.getInput().set(out));
-        }
-      });
+    });
+
+    // Fetches everything below concurrently when requested, the download tasks then take the files from the local caches
+    TaskProvider<Prefetch> prefetch = tasks.register("prefetch", Prefetch.class, task -> {
+      task.getRepoUrl().set(REPO_URL);
+      task.getStoreDir().set(storeDir);
+      task.getDownloadSegments().set(downloadSegments);
+      task.getMetadataCacheDir().set(metadataCacheDir);
+      task.getMetadataTtl().set(metadataTtl);
+      task.getMavenArtifacts().add("com.jetbrains:fernflower:last-j11");
+      task.getMinecraftVersion().set(versionProp);
+      task.getMinecraftRepoDir().set(mcRepoDir);
+      task.getDeobfToolsService().set(deobfToolsService);
+      task.usesService(deobfToolsService);
+      task.getDependencies().from(
+          project.getConfigurations().getByName("runtimeClasspath"),
+          project.getConfigurations().getByName(mcSourceSet.getRuntimeClasspathConfigurationName())
+      );
     });
 
     TaskProvider<MavenDownload> downloadFernFlower = tasks.register("downloadFernFlower", MavenDownload.class, task -> {
+      task.mustRunAfter(prefetch);
       task.getMavenRepoUrl().set(REPO_URL);
       task.getGroupName().set("com.jetbrains");
       task.getArtifactName().set("fernflower");
       task.getVersion().set("last-j11");
+      // last-j11 is a branch build, republished under the same version whenever the branch moves
+      task.getRevalidate().set(true);
       task.getOutput().set(project.getLayout().getBuildDirectory().file(task.getName() + "/fernflower.jar"));
     });
 
     TaskProvider<OutputtingJavaExec> createFrg2SrcMappings = tasks.register("createFrg2SrcMappings", OutputtingJavaExec.class, task -> {
-      task.onlyIf(task1 -> project.getExtensions().getByType(ClassicMCExt.class).getMappingType().get().equals(SOURCE));
-      task.classpath(deobfToolsJarFile);
+      task.onlyIf(t -> SOURCE.equals(mappingTypeProp.get()));
+      task.classpath(deobfToolsJar);
       task.setOutputFilename("frg2src.frg");
       task.getMainClass().set("de.heisluft.deobf.tooling.Remapper");
     });
 
     TaskProvider<RemapTask> remapJarSrc = tasks.register("remapJarSrc", RemapTask.class, task -> {
       task.dependsOn(applyAts, createFrg2SrcMappings);
-      task.onlyIf(task1 -> project.getExtensions().getByType(ClassicMCExt.class).getMappingType().get().equals(SOURCE));
-      task.classpath(deobfToolsJarFile);
-      task.getInput().set((applyAts.get().getATFile().getAsFile().get().exists() ? applyAts : remapJarFrg).get().getOutput());
+      task.onlyIf(t -> SOURCE.equals(mappingTypeProp.get()));
+      task.classpath(deobfToolsJar);
+      task.getInput().set(applyAts.flatMap(OutputtingJavaExec::getOutput));
       task.getMappings().set(createFrg2SrcMappings.get().getOutput());
       task.setOutputFilename("minecraft-mapped-src.jar");
     });
@@ -226,50 +275,47 @@ public abstract class BasePlugin implements Plugin<Project> {
     TaskProvider<Decomp> decompMC = tasks.register("decompMC", Decomp.class, task -> {
       task.dependsOn(downloadFernFlower, applyAts);
       task.classpath(downloadFernFlower.get().getOutput());
-      task.getInput().set(mappingTypeProp.flatMap(mt -> (SOURCE.equals(mt) ? remapJarSrc : applyAts.get().getATFile().getAsFile().get().exists() ? applyAts : remapJarFrg).get().getOutput()));
+      task.getInput().set(mappingTypeProp.flatMap(mt -> (SOURCE.equals(mt) ? remapJarSrc : applyAts).flatMap(OutputtingJavaExec::getOutput)));
     });
 
     TaskProvider<Extract> extractSrc = tasks.register("extractSrc", Extract.class, task -> task.getInput().set(decompMC.get().getOutput()));
 
     TaskProvider<JavaExec> renamePatches = tasks.register("renamePatches", JavaExec.class, task -> {
-      task.getOutputs().upToDateWhen(t -> !createFrg2SrcMappings.get().getDidWork());
       task.dependsOn(createFrg2SrcMappings);
-      task.classpath(deobfToolsJarFile);
+      task.getInputs().file(createFrg2SrcMappings.flatMap(OutputtingJavaExec::getOutput));
+      task.classpath(deobfToolsJar);
       task.getMainClass().set("de.heisluft.deobf.tooling.SrcLevelRemapper");
+      task.usesService(deobfToolsService);
     });
 
     TaskProvider<Patcher> applyCompilerPatches = tasks.register("applyCompilerPatches", Patcher.class, task -> {
       task.getInput().set(extractSrc.get().getOutput());
-      // This cant be a lambda because Gradle will shit itself otherwise
-      //noinspection Convert2Lambda
-      task.doFirst(new Action<>() { // If work needs to be done, we have to first purge the output
-        @Override
-        public void execute(@Nonnull Task task) {
-          try {
-            Util.deleteContents(((Patcher) task).getOutput().getAsFile().get());
-          } catch(IOException e) {
-            throw new UncheckedIOException(e);
-          }
-        }
-      });
-      if(mappingTypeProp.get().equals(SOURCE)) task.dependsOn(renamePatches);
+      task.dependsOn(mappingTypeProp.map(mt -> SOURCE.equals(mt) ? List.of(renamePatches) : List.of()));
     });
 
+    File mcSrcDir = mcSourceSet.getJava().getSrcDirs().iterator().next();
+    File mcResourcesDir = mcSourceSet.getResources().getSrcDirs().iterator().next();
+
     TaskProvider<Extract> extractAssets = tasks.register("extractAssets", Extract.class, task -> {
+      task.mustRunAfter(prefetch);
       task.getIncludedPaths().addAll(Arrays.asList("**.png", "**.md3", "**.MD3", "**.gif"));
       task.getInput().set(versionProp.flatMap(resolveMinecraftJar(project)));
-      task.getOutput().set(mcSourceSet.getResources().getSrcDirs().iterator().next());
+      task.getOutput().set(mcResourcesDir);
     });
 
     tasks.getByName(mcSourceSet.getProcessResourcesTaskName()).mustRunAfter(extractAssets);
 
+    // Records what copySrc and regenSrc wrote, so that genPatches only has to diff what changed since
+    Provider<RegularFile> mcSrcManifest = project.getLayout().getBuildDirectory().file("mcSrcManifest/manifest.txt");
+    Action<Task> recordMcSrcManifest = recordSourceManifest(mcSrcManifest);
+
     TaskProvider<Copy> copySrc = tasks.register("copySrc", Copy.class, task -> {
       task.dependsOn(applyCompilerPatches);
-      task.into(mcSourceSet.getJava().getSrcDirs().iterator().next());
+      task.into(mcSrcDir);
       task.from(applyCompilerPatches.get().getOutput());
       task.setDuplicatesStrategy(DuplicatesStrategy.INCLUDE);
       task.onlyIf(t -> {
-        Path mcsd = task.getDestinationDir().toPath();
+        Path mcsd = ((Copy) t).getDestinationDir().toPath();
         if(!Files.isDirectory(mcsd)) try {
           Files.createDirectories(mcsd);
         } catch(IOException e) {
@@ -281,33 +327,24 @@ public abstract class BasePlugin implements Plugin<Project> {
           return false;
         }
       });
+      task.doLast(recordMcSrcManifest);
     });
 
     tasks.register("regenSrc", Copy.class, task -> {
       task.dependsOn(applyCompilerPatches);
-      task.into(mcSourceSet.getJava().getSrcDirs().iterator().next());
+      task.into(mcSrcDir);
       task.from(applyCompilerPatches.get().getOutput());
       task.getOutputs().upToDateWhen(task1 -> false);
       task.setDuplicatesStrategy(DuplicatesStrategy.INCLUDE);
-      // This cant be a lambda because Gradle will shit itself otherwise
-      //noinspection Convert2Lambda
-      task.doFirst(new Action<>() {
-        @Override
-        public void execute(@Nonnull Task t) {
-          try {
-            Util.deleteContents(task.getDestinationDir());
-            Util.deleteContents(extractAssets.get().getOutput().get().getAsFile());
-          } catch(IOException ex) {
-            throw new UncheckedIOException(ex);
-          }
-        }
-      });
+      task.doFirst(clearDestinationAnd(mcResourcesDir));
+      task.doLast(recordMcSrcManifest);
     });
 
     tasks.register("genPatches", Differ.class, task -> {
-      task.onlyIf(t -> t.getProject().getExtensions().getByType(ClassicMCExt.class).getMappingType().get().equals(FERGIE));
+      task.onlyIf(t -> FERGIE.equals(mappingTypeProp.get()));
       task.dependsOn(copySrc);
-      task.getModifiedSrcDir().set(mcSourceSet.getJava().getSrcDirs().iterator().next());
+      task.getModifiedSrcDir().set(mcSrcDir);
+      task.getSourceManifest().set(mcSrcManifest);
     });
 
     TaskProvider<Jar> mcJar = tasks.register("mcJar", Jar.class, task -> {
@@ -317,9 +354,18 @@ public abstract class BasePlugin implements Plugin<Project> {
       task.getArchiveVersion().set(versionProp);
     });
 
-    TaskProvider<CPFileDecorator> genCPFiles = tasks.register("genCPFiles", CPFileDecorator.class, task ->
-        task.getMinecraftJarPath().set(mcJar.flatMap(Jar::getArchiveFile))
-    );
+    TaskProvider<CPFileDecorator> genCPFiles = tasks.register("genCPFiles", CPFileDecorator.class, task -> {
+      task.getMinecraftJarPath().set(mcJar.flatMap(Jar::getArchiveFile));
+      task.getRuntimeClasspath().from(project.getConfigurations().getByName("runtimeClasspath"));
+      task.getGameClasspath().from(project.getConfigurations().getByName(mcSourceSet.getRuntimeClasspathConfigurationName()));
+    });
+
+    // Resolved when launching, not when configuring
+    Provider<String> modulePath = project.getConfigurations().getByName("runtimeClasspath").getIncoming().getArtifacts()
+        .getResolvedArtifacts().map(artifacts -> artifacts.stream().map(ResolvedArtifactResult::getFile)
+            .filter(f -> Stream.of("asm-", "bootstraplauncher-", "securejarhandler-").anyMatch(f.getName()::startsWith))
+            .map(File::getAbsolutePath)
+            .collect(Collectors.joining(File.pathSeparator)));
 
     tasks.register("launchMC", JavaExec.class, t -> {
       t.dependsOn(genCPFiles, mcSourceSet.getCompileJavaTaskName(), "compileJava");
@@ -329,18 +375,144 @@ public abstract class BasePlugin implements Plugin<Project> {
           "--add-opens", "java.base/java.lang.invoke=cpw.mods.securejarhandler",
           "--add-exports", "java.base/sun.security.util=cpw.mods.securejarhandler",
           "--add-exports", "jdk.naming.dns/com.sun.jndi.dns=java.naming",
-          "-p", project.getConfigurations().getByName("runtimeClasspath").getResolvedConfiguration()
-              .getResolvedArtifacts().stream().map(ResolvedArtifact::getFile)
-              .filter(f -> Stream.of("asm-", "bootstraplauncher-", "securejarhandler-").anyMatch(f.getName()::startsWith))
-              .map(File::getAbsolutePath)
-              .collect(Collectors.joining(File.pathSeparator)),
+          "-p", modulePath,
           "-Dlog4j.skipJansi=false",
-          "-DlegacyClassPath.file=" + genCPFiles.get().getOutput().get().getAsFile().getAbsolutePath(),
+          genCPFiles.flatMap(CPFileDecorator::getOutput).map(f -> "-DlegacyClassPath.file=" + f.getAsFile().getAbsolutePath()),
           "-DignoreList=bootstraplauncher,securejarhandler,asm"
       ));
       t.setWorkingDir(new File(project.getProjectDir(), "run"));
       t.getMainClass().set("cpw.mods.bootstraplauncher.BootstrapLauncher");
     });
+
+    trackPipelineMetrics(project);
+  }
+
+  /**
+   * Records the runs of all {@link #PIPELINE_STAGES} into build/pipeline-metrics/history.jsonl and registers the
+   * pipelineReport task summarizing them. Stages forking JVMs additionally log their garbage collections, from which
+   * their peak heap usage is read.
+   *
+   * @param project the project to track
+   */
+  private void trackPipelineMetrics(Project project) {
+    TaskContainer tasks = project.getTasks();
+    Provider<Directory> metricsDir = project.getLayout().getBuildDirectory().dir("pipeline-metrics");
+    String pathPrefix = ":".equals(project.getPath()) ? ":" : project.getPath() + ":";
+    Provider<PipelineMetrics> metrics = project.getGradle().getSharedServices().registerIfAbsent(
+        "pipelineMetrics" + project.getPath(), PipelineMetrics.class, spec -> {
+          spec.getParameters().getHistoryFile().set(metricsDir.map(dir -> dir.file("history.jsonl")));
+          PIPELINE_STAGES.forEach(stage -> spec.getParameters().getTaskPaths().add(pathPrefix + stage));
+        });
+    getEventsListenerRegistry().onTaskCompletion(metrics);
+
+    for(String stage : PIPELINE_STAGES) tasks.named(stage, task -> {
+      File gcLogDir = metricsDir.get().dir("gc/" + stage).getAsFile();
+      task.usesService(metrics);
+      if(task instanceof JavaExec) ((JavaExec) task).getJvmArgumentProviders().add(new GcLogArguments(gcLogDir,
+          ((JavaExec) task).getJavaLauncher().map(l -> l.getMetadata().getLanguageVersion().asInt())));
+      task.doFirst(clearGcLogs(gcLogDir));
+      task.doLast(recordMetrics(metrics, gcLogDir));
+    });
+
+    tasks.register("pipelineReport", PipelineReport.class, task -> {
+      task.setGroup("help");
+      task.setDescription("Shows the critical path of the last pipeline run and flags stages that got slower.");
+      task.getHistoryFile().set(metricsDir.map(dir -> dir.file("history.jsonl")));
+      task.mustRunAfter(PIPELINE_STAGES);
+    });
+  }
+
+  /*
+   * Actions are created within static methods, as anonymous classes created within apply would reference the plugin,
+   * which the configuration cache can't store.
+   */
+
+  /**
+   * Creates an action recording the source manifest of the destination dir of a copy task.
+   */
+  private static Action<Task> recordSourceManifest(Provider<RegularFile> manifest) {
+    // This cant be a lambda because Gradle will shit itself otherwise
+    //noinspection Convert2Lambda
+    return new Action<>() {
+      @Override
+      public void execute(@Nonnull Task t) {
+        try {
+          Differ.recordSourceManifest(((Copy) t).getDestinationDir().toPath(), manifest.get().getAsFile().toPath());
+        } catch(IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    };
+  }
+
+  /**
+   * Creates an action deleting the contents of the destination dir of a copy task and of dir.
+   */
+  private static Action<Task> clearDestinationAnd(File dir) {
+    // This cant be a lambda because Gradle will shit itself otherwise
+    //noinspection Convert2Lambda
+    return new Action<>() {
+      @Override
+      public void execute(@Nonnull Task t) {
+        try {
+          Util.deleteContents(((Copy) t).getDestinationDir());
+          Util.deleteContents(dir);
+        } catch(IOException ex) {
+          throw new UncheckedIOException(ex);
+        }
+      }
+    };
+  }
+
+  /**
+   * Creates an action deleting the gc logs of a previous run.
+   */
+  private static Action<Task> clearGcLogs(File gcLogDir) {
+    // This cant be a lambda because Gradle will shit itself otherwise
+    //noinspection Convert2Lambda
+    return new Action<>() {
+      @Override
+      public void execute(@Nonnull Task t) {
+        try {
+          Files.createDirectories(gcLogDir.toPath());
+          Util.deleteContents(gcLogDir);
+        } catch(IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    };
+  }
+
+  /**
+   * Creates an action handing the inputs and outputs of a task to metrics, which measures them along with the heap usage
+   * logged to gcLogDir once the task completed.
+   */
+  private static Action<Task> recordMetrics(Provider<PipelineMetrics> metrics, File gcLogDir) {
+    // This cant be a lambda because Gradle will shit itself otherwise
+    //noinspection Convert2Lambda
+    return new Action<>() {
+      @Override
+      public void execute(@Nonnull Task t) {
+        // The classpath is an input, but not what the stage processes
+        Set<File> inputs = new HashSet<>(t.getInputs().getFiles().getFiles());
+        if(t instanceof JavaExec) inputs.removeAll(((JavaExec) t).getClasspath().getFiles());
+        metrics.get().record(t.getPath(), inputs, t.getOutputs().getFiles().getFiles(), gcLogDir);
+      }
+    };
+  }
+
+  /**
+   * Computes how long maven metadata may be reused. This defaults to one day and can be set in minutes via the
+   * {@code classicModding.metadataTtlMinutes} gradle property. --refresh-dependencies always fetches metadata,
+   * --offline never expires it.
+   *
+   * @param project the project to read the gradle property from
+   * @return the computed time to live
+   */
+  private static Duration metadataTtl(Project project) {
+    if(project.getGradle().getStartParameter().isRefreshDependencies()) return Duration.ZERO;
+    if(project.getGradle().getStartParameter().isOffline()) return Duration.ofMillis(Long.MAX_VALUE);
+    return Duration.ofMinutes(project.getProviders().gradleProperty("classicModding.metadataTtlMinutes").map(Long::parseLong).getOrElse(24 * 60L));
   }
 
   public final CommandLineArgumentProvider resolving(Object... args) {
@@ -355,9 +527,16 @@ public abstract class BasePlugin implements Plugin<Project> {
   }
 
   public final Transformer<Provider<RegularFile>, String> resolveMinecraftJar(Project project) {
-    return  version -> project.getLayout().file(project.provider(() -> {
+    // Only plain values may be captured, the repo is created wherever the jar is resolved
+    ProjectLayout layout = project.getLayout();
+    ProviderFactory providers = project.getProviders();
+    File repoDir = mcRepoDir, metaDir = metadataCacheDir;
+    Duration ttl = metadataTtl;
+    int segments = downloadSegments;
+    return  version -> layout.file(providers.provider(() -> {
       try {
-        return MCRepo.getInstance().resolve("minecraft", version).toAbsolutePath().toFile();
+        MCRepo repo = new MCRepo(repoDir.toPath(), REPO_URL, segments, new MavenMetaUtil(metaDir.toPath(), ttl));
+        return repo.resolve("minecraft", version).toAbsolutePath().toFile();
       } catch(IOException e) {
         throw new RuntimeException(e);
       }
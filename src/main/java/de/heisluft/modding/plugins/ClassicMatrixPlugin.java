@@ -0,0 +1,59 @@
+package de.heisluft.modding.plugins;
+
+import de.heisluft.modding.extensions.ClassicMCExt;
+import de.heisluft.modding.extensions.ClassicMatrixExt;
+import de.heisluft.modding.util.MinecraftVersion;
+import org.gradle.api.Plugin;
+import org.gradle.api.initialization.Settings;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A settings plugin including one workspace project per version of a version matrix. Every workspace applies the
+ * JarModDev or DeobfDataDev plugin for its version, with its own mc source set and outputs.
+ *
+ * All workspaces are projects of the same build, so DeobfTools, FernFlower and maven metadata are resolved once and
+ * shared among them, and with {@code org.gradle.parallel=true} Gradle runs the pipelines of different versions
+ * concurrently. Running a task like {@code genPatches} from the root project runs it for every version.
+ */
+public abstract class ClassicMatrixPlugin implements Plugin<Settings> {
+
+  @Override
+  public void apply(Settings settings) {
+    ClassicMatrixExt ext = settings.getExtensions().create("classicMatrix", ClassicMatrixExt.class);
+    // project path -> version, filled once the settings script configured the extension
+    Map<String, String> versions = new HashMap<>();
+
+    settings.getGradle().settingsEvaluated(s -> {
+      Path workspacesDir = s.getRootDir().toPath().resolve(ext.getDirectory().get());
+      for(String version : ext.getVersions().get()) {
+        // Fail on typos before creating a workspace for them
+        MinecraftVersion.of(version);
+        Path workspaceDir = workspacesDir.resolve(version);
+        try {
+          Files.createDirectories(workspaceDir);
+        } catch(IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        String path = ":" + version;
+        s.include(path);
+        s.project(path).setProjectDir(workspaceDir.toFile());
+        versions.put(path, version);
+      }
+    });
+
+    settings.getGradle().beforeProject(project -> {
+      String version = versions.get(project.getPath());
+      if(version == null) return;
+      project.getPluginManager().apply(ext.getPlugin().get());
+      ClassicMCExt mcExt = project.getExtensions().getByType(ClassicMCExt.class);
+      mcExt.getVersion().set(version);
+      if(ext.getMappingType().isPresent()) mcExt.getMappingType().set(ext.getMappingType().get());
+    });
+  }
+}
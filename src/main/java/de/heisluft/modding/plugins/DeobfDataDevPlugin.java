@@ -9,7 +9,8 @@ import de.heisluft.modding.tasks.Patcher;
 import de.heisluft.modding.tasks.RemapTask;
 import de.heisluft.modding.tasks.RestoreMeta;
 import de.heisluft.modding.tasks.Zip2ZipCopy;
-import de.heisluft.modding.util.Util;
+import de.heisluft.modding.util.Hashing;
+import de.heisluft.modding.util.VersionRules;
 import org.gradle.api.Action;
 import org.gradle.api.Project;
 import org.gradle.api.Task;
@@ -18,16 +19,29 @@ import org.gradle.api.tasks.TaskContainer;
 import org.gradle.api.tasks.TaskProvider;
 
 import javax.annotation.Nonnull;
+import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static de.heisluft.modding.extensions.ClassicMCExt.SOURCE;
 
-public class DeobfDataDevPlugin extends BasePlugin {
+public abstract class DeobfDataDevPlugin extends BasePlugin {
+  /**
+   * Additional paths kept by stripLibraries. Classic jars had their dependencies obfuscated, so we have to remap them,
+   * this is not the case for JarModDev, as there, the mappings already exist
+   */
+  private static final VersionRules<String> STRIP_INCLUDES = new VersionRules<String>()
+      .add("..<in-20091223", "**");
+
   @Override
   public void apply(Project project) {
     super.apply(project);
@@ -51,13 +65,18 @@ public class DeobfDataDevPlugin extends BasePlugin {
     } catch (IOException e) {
       throw new UncheckedIOException(e);
     }
+    // Task actions and specs must only capture files, so they can be stored in the configuration cache
+    File frgMappings = frgMappingsFile.toFile(), frgChecksum = frgChecksumFile.toFile();
+    File srcMappings = srcMappingsFile.toFile(), srcChecksum = srcChecksumFile.toFile();
+    File ats = atFile.toFile(), atChecksum = atChecksumFile.toFile();
+    File patches = patchesDir.toFile(), renamedPatches = renamedPatchesDir.toFile();
 
     TaskProvider<RestoreMeta> restoreMeta = tasks.named("restoreMeta", RestoreMeta.class,
         task -> task.setMappingsFileName("mappings.frg2")
     );
 
     TaskProvider<OutputtingJavaExec> genMappings = tasks.register("genMappings", OutputtingJavaExec.class, task -> {
-      task.classpath(deobfToolsJarFile);
+      task.classpath(deobfToolsJar);
       task.setOutputFilename("mappings-generated.frg");
       task.getMainClass().set("de.heisluft.deobf.tooling.Remapper");
       task.getArgumentProviders().add(resolving(
@@ -66,47 +85,23 @@ public class DeobfDataDevPlugin extends BasePlugin {
           task.getOutput(),
           "-s", restoreMeta.flatMap(RestoreMeta::getMappings)
       ));
-      // This cant be a lambda because Gradle will shit itself otherwise
-      //noinspection Convert2Lambda
-      task.doLast("copyToMainDir", new Action<>() {
-        @Override
-        public void execute(@Nonnull Task t) {
-          try {
-            if(!Files.isRegularFile(frgMappingsFile)) {
-              Files.copy(task.getOutput().get().getAsFile().toPath(), frgMappingsFile);
-              Files.write(frgChecksumFile, Util.SHA_512.digest(Files.readAllBytes(frgMappingsFile)));
-            }
-          } catch(IOException e) {
-            throw new RuntimeException(e);
-          }
-        }
-      });
+      task.getArgumentFiles().from(restoreMeta.flatMap(RestoreMeta::getOutput), restoreMeta.flatMap(RestoreMeta::getMappings));
+      task.getPublishTo().set(frgMappingsFile.toFile());
+      task.getPublishChecksumTo().set(frgChecksumFile.toFile());
     });
 
     TaskProvider<OutputtingJavaExec> genATs = tasks.register("genATs", OutputtingJavaExec.class, task -> {
       task.dependsOn(restoreMeta);
-      task.classpath(deobfToolsJarFile);
+      task.classpath(deobfToolsJar);
       task.setOutputFilename("at.cfg");
       task.getMainClass().set("de.heisluft.deobf.tooling.at.ATGenerator");
       task.getArgumentProviders().add(resolving(
           restoreMeta.flatMap(RestoreMeta::getOutput),
           task.getOutput()
       ));
-      // This cant be a lambda because Gradle will shit itself otherwise
-      //noinspection Convert2Lambda
-      task.doLast("copyToMainDir", new Action<>() {
-        @Override
-        public void execute(@Nonnull Task t) {
-          try {
-            if(!Files.isRegularFile(atFile) && task.getOutput().get().getAsFile().exists()) {
-              Files.copy(task.getOutput().get().getAsFile().toPath(), atFile);
-              Files.write(atChecksumFile, Util.SHA_512.digest(Files.readAllBytes(atFile)));
-            }
-          } catch(IOException e) {
-            throw new RuntimeException(e);
-          }
-        }
-      });
+      task.getArgumentFiles().from(restoreMeta.flatMap(RestoreMeta::getOutput));
+      task.getPublishTo().set(atFile.toFile());
+      task.getPublishChecksumTo().set(atChecksumFile.toFile());
     });
 
     tasks.named("remapJarFrg", RemapTask.class, task -> {
@@ -116,50 +111,37 @@ public class DeobfDataDevPlugin extends BasePlugin {
 
     tasks.named("applyAts", ATApply.class, task -> {
       task.dependsOn(genATs);
-      task.getOutputs().upToDateWhen(t -> validateChecksumUpdating(atFile, atChecksumFile) && !tasks.getByName("remapJarFrg").getDidWork());
+      task.getOutputs().upToDateWhen(t -> validateChecksumUpdating(ats, atChecksum));
       task.getATFile().set(atFile.toFile());
     });
 
     OutputtingJavaExec createFrg2SrcMappings = tasks.withType(OutputtingJavaExec.class).getByName("createFrg2SrcMappings", task -> {
       task.getOutputs().upToDateWhen(t ->
-          validateChecksumUpdating(frgMappingsFile, frgChecksumFile) && validateChecksumUpdating(srcMappingsFile, srcChecksumFile)
+          validateChecksumUpdating(frgMappings, frgChecksum) && validateChecksumUpdating(srcMappings, srcChecksum)
       );
       task.getArgumentProviders().add(resolving(
           "genMediatorMappings",
-          frgMappingsFile,
-          srcMappingsFile,
+          frgMappings,
+          srcMappings,
           "-o",
           task.getOutput()
       ));
+      task.getArgumentFiles().from(frgMappingsFile, srcMappingsFile);
     });
 
     tasks.named("renamePatches", JavaExec.class, task -> {
       task.dependsOn(createFrg2SrcMappings);
       task.getArgumentProviders().add(resolving(
-          patchesDir, createFrg2SrcMappings.getOutput(), renamedPatchesDir
+          patches, createFrg2SrcMappings.getOutput(), renamedPatches
       ));
+      task.getInputs().dir(patches);
+      task.getOutputs().dir(renamedPatches);
     });
 
     tasks.named("genPatches", Differ.class, task -> {
-      // This cant be a lambda because Gradle will shit itself otherwise
-      //noinspection Convert2Lambda
-      task.doLast(new Action<>() {
-        @Override
-        public void execute(@Nonnull Task t) {
-          Path patchesPath = task.getPatchDir().getAsFile().get().toPath();
-          try(Stream<Path> files = Files.walk(patchesPath)) {
-            files.forEach(path -> {
-              try {
-                Files.copy(path, patchesDir.resolve(path.getFileName().toString()));
-              } catch(IOException ex) {
-                throw new UncheckedIOException(ex);
-              }
-            });
-          } catch(IOException e) {
-            throw new UncheckedIOException(e);
-          }
-        }
-      });
+      // A cache hit would skip copying the patches into the workspace
+      task.getOutputs().doNotCacheIf("patches are copied into the deobf workspace by a task action", t -> true);
+      task.doLast(copyPatchesTo(patches));
       task.getBackupSrcDir().set(tasks.named("extractSrc", Extract.class).flatMap(Extract::getOutput));
     });
 
@@ -168,7 +150,7 @@ public class DeobfDataDevPlugin extends BasePlugin {
     tasks.named("applyCompilerPatches", Patcher.class, task ->
         task.getPatchDir().set(
             project.getLayout().dir(ext.getMappingType().map(mappingType ->
-                (SOURCE.equals(mappingType) ? renamedPatchesDir : patchesDir).toAbsolutePath().toFile()
+                (SOURCE.equals(mappingType) ? renamedPatches : patches).getAbsoluteFile()
             ))
         )
     );
@@ -180,24 +162,62 @@ public class DeobfDataDevPlugin extends BasePlugin {
         try {
           if (!Files.isRegularFile(srcMappingsFile)) {
             Files.copy(frgMappingsFile, srcMappingsFile);
-            Files.write(srcChecksumFile, Util.SHA_512.digest(Files.readAllBytes(srcMappingsFile)));
+            Files.write(srcChecksumFile, Hashing.sha512(srcMappingsFile));
           }
         } catch (IOException e) {
           throw new UncheckedIOException(e);
         }
       }
 
-      // Classic jars had their dependencies obfuscated, so we have to remap them, this is not the case for JarModDev, as there, the mappings already exist
-      if(!ext.getVersion().get().startsWith("in"))
-        tasks.named("stripLibraries", Zip2ZipCopy.class, t -> t.getIncludedPaths().add("**"));
+      List<String> includes = STRIP_INCLUDES.lookup(ext.getVersion().get());
+      if(!includes.isEmpty()) tasks.named("stripLibraries", Zip2ZipCopy.class, t -> t.getIncludedPaths().addAll(includes));
       // TODO: add stripClassicLibraries back
       //else tasks.named("stripClassicLibraries", Zip2ZipCopy.class, t -> t.getIncludedPaths().add("**"));
     });
   }
 
-  private boolean validateChecksumUpdating(Path path, Path checksumPath) {
+  /**
+   * Creates an action syncing the patches generated by a differ to dir, deleting patches within dir which were not
+   * generated, e.g. because their edit was reverted. This is static, as anonymous classes created within apply would
+   * reference the plugin, which the configuration cache can't store.
+   */
+  private static Action<Task> copyPatchesTo(File dir) {
+    // This cant be a lambda because Gradle will shit itself otherwise
+    //noinspection Convert2Lambda
+    return new Action<>() {
+      @Override
+      public void execute(@Nonnull Task t) {
+        Path patchesPath = ((Differ) t).getPatchDir().getAsFile().get().toPath();
+        Set<String> generated = new HashSet<>();
+        try(Stream<Path> files = Files.walk(patchesPath)) {
+          files.filter(Files::isRegularFile).forEach(path -> {
+            try {
+              generated.add(path.getFileName().toString());
+              Files.copy(path, dir.toPath().resolve(path.getFileName().toString()), StandardCopyOption.REPLACE_EXISTING);
+            } catch(IOException ex) {
+              throw new UncheckedIOException(ex);
+            }
+          });
+        } catch(IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        // applyCompilerPatches reads every patch within dir, stale ones would reapply reverted edits
+        try(Stream<Path> files = Files.list(dir.toPath())) {
+          for(Path path : files.collect(Collectors.toList())) {
+            String name = path.getFileName().toString();
+            if(name.endsWith(".patch") && !generated.contains(name) && Files.isRegularFile(path)) Files.delete(path);
+          }
+        } catch(IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    };
+  }
+
+  private static boolean validateChecksumUpdating(File file, File checksumFile) {
     try {
-      byte[] computed = Util.SHA_512.digest(Files.readAllBytes(path));
+      byte[] computed = Hashing.sha512(file.toPath());
+      Path checksumPath = checksumFile.toPath();
       // Don't cache if sha was deleted
       boolean wasEqual = Files.isRegularFile(checksumPath) && Arrays.equals(Files.readAllBytes(checksumPath), computed);
       if(!wasEqual) Files.write(checksumPath, computed); // Update / write new checksum
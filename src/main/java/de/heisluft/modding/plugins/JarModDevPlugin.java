@@ -10,7 +10,7 @@ import java.nio.file.Path;
 
 import static de.heisluft.modding.extensions.ClassicMCExt.SOURCE;
 
-public class JarModDevPlugin extends BasePlugin {
+public abstract class JarModDevPlugin extends BasePlugin {
 
   @Override
   public void apply(Project project) {
@@ -22,9 +22,10 @@ public class JarModDevPlugin extends BasePlugin {
 
     // We have to remap first as the Remapper cannot infer inheritance information for obfuscated
     // libs after they are stripped
-    TaskProvider<RemapTask> remapJarFrg = tasks.named("remapJarFrg", RemapTask.class, task ->
-        task.getInput().set(ext.getVersion().flatMap(resolveMinecraftJar(project)))
-    );
+    TaskProvider<RemapTask> remapJarFrg = tasks.named("remapJarFrg", RemapTask.class, task -> {
+      task.mustRunAfter("prefetch");
+      task.getInput().set(ext.getVersion().flatMap(resolveMinecraftJar(project)));
+    });
 
     TaskProvider<RestoreMeta> restoreMeta = tasks.named("restoreMeta", RestoreMeta.class, task ->
         task.getInput().set(remapJarFrg.flatMap(OutputtingJavaExec::getOutput))
@@ -38,7 +39,12 @@ public class JarModDevPlugin extends BasePlugin {
         task.getInput().set(stripLibraries.flatMap(Zip2ZipCopy::getOutput))
     );
 
+    tasks.named("prefetch", Prefetch.class, task ->
+        task.getMavenArtifacts().add(ext.getVersion().map(version -> "de.heisluft.deobf.data:" + version + ":latest@zip"))
+    );
+
     TaskProvider<MavenDownload> downloadDeobfData = tasks.register("downloadDeobfData", MavenDownload.class, task -> {
+      task.mustRunAfter("prefetch");
       task.getGroupName().set("de.heisluft.deobf.data");
       task.getArtifactName().set(project.getExtensions().getByType(ClassicMCExt.class).getVersion());
       task.getExtension().set("zip");
@@ -57,6 +63,10 @@ public class JarModDevPlugin extends BasePlugin {
           extractData.flatMap(t -> t.getOutput().file("src.frg")),
           "-o", task.getOutput()
       ));
+      task.getArgumentFiles().from(
+          extractData.flatMap(t -> t.getOutput().file("fergie.frg")),
+          extractData.flatMap(t -> t.getOutput().file("src.frg"))
+      );
     });
 
     tasks.named("renamePatches", JavaExec.class, task -> {
@@ -64,8 +74,10 @@ public class JarModDevPlugin extends BasePlugin {
           task.getArgumentProviders().add(resolving(
               extractData.flatMap(e -> e.getOutput().dir("patches")),
               createFrg2SrcMappings.flatMap(OutputtingJavaExec::getOutput),
-              renamedPatchesDir
+              renamedPatchesDir.toFile()
           ));
+          task.getInputs().files(extractData.flatMap(e -> e.getOutput().dir("patches")));
+          task.getOutputs().dir(renamedPatchesDir.toFile());
         }
     );
 
@@ -85,12 +97,31 @@ public class JarModDevPlugin extends BasePlugin {
         task.getBackupSrcDir().set(applyCompilerPatches.flatMap(Patcher::getOutput))
     );
 
+    // Runs remapJarFrg, restoreMeta, stripLibraries and applyAts in one go
+    TaskProvider<JarPipeline> processJar = tasks.register("processJar", JarPipeline.class, task -> {
+      task.mustRunAfter("prefetch");
+      task.getInput().set(ext.getVersion().flatMap(resolveMinecraftJar(project)));
+      task.getMappings().set(extractData.flatMap(t -> t.getOutput().file("fergie.frg")));
+      task.getATFile().set(extractData.flatMap(t -> t.getOutput().file("at.cfg")));
+      task.getStages().addAll(JarPipeline.REMAP, JarPipeline.RESTORE_META, JarPipeline.STRIP, JarPipeline.APPLY_ATS);
+      task.getIncludedPaths().addAll(stripLibraries.flatMap(Zip2ZipCopy::getIncludedPaths));
+      task.getToolClasspath().from(deobfToolsJar);
+      task.usesService(deobfToolsService);
+    });
+
     project.afterEvaluate(project1 -> {
       boolean srcRemapping = project1.getExtensions().getByType(ClassicMCExt.class).getMappingType().get().equals(SOURCE);
       tasks.named("applyCompilerPatches", Patcher.class, task -> {
         File patchesDir = extractData.get().getOutput().get().dir("patches").getAsFile();
         if(patchesDir.isDirectory()) task.getPatchDir().set(srcRemapping ? renamedPatchesDir.toFile() : patchesDir);
       });
+      if(!ext.getFuseJarPipeline().get()) return;
+      // The separate steps are superseded by processJar
+      for(String name : new String[]{"remapJarFrg", "restoreMeta", "stripLibraries", "applyAts"})
+        tasks.named(name, t -> t.setEnabled(false));
+      tasks.named("remapJarSrc", RemapTask.class, task -> task.getInput().set(processJar.flatMap(JarPipeline::getOutput)));
+      if(!srcRemapping)
+        tasks.named("decompMC", Decomp.class, task -> task.getInput().set(processJar.flatMap(JarPipeline::getOutput)));
     });
   }
 }
\ No newline at end of file
@@ -0,0 +1,132 @@
+package de.heisluft.modding.repo;
+
+import de.heisluft.modding.util.Util;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A local store of maven artifacts shared by all projects. Artifacts are stored in the maven layout along with the
+ * ETag and Last-Modified headers they were served with, and revalidated with conditional requests, so that unchanged
+ * artifacts are never transferred twice. Transfers go through {@link Downloader}, so interrupted ones are resumed.
+ */
+public class ArtifactStore {
+  private static final Logger LOGGER = Logger.getLogger("ArtifactStore");
+  private static final String META_SUFFIX = ".meta";
+  /** Projects built in parallel may fetch the same artifact at once, which must not write the same part file twice */
+  private static final Map<Path, Object> LOCKS = new ConcurrentHashMap<>();
+
+  private final Path root;
+  private final int downloadSegments;
+
+  public ArtifactStore(Path root) {
+    this(root, 1);
+  }
+
+  /**
+   * @param root the directory to store artifacts in
+   * @param downloadSegments the number of segments large artifacts are downloaded in, see {@link Downloader}
+   */
+  public ArtifactStore(Path root, int downloadSegments) {
+    this.root = root;
+    this.downloadSegments = downloadSegments;
+  }
+
+  /**
+   * Fetches an artifact into the store, unless the stored copy is still current. If the repo can not be reached, a
+   * stored copy is used as is. If the repo publishes a .sha512 checksum for the artifact, the download is verified
+   * against it.
+   *
+   * @param repoUrl the url of the maven repo, ending with a slash
+   * @param path the path of the artifact relative to the repo root, e.g. {@code com/jetbrains/fernflower/1.0/fernflower-1.0.jar}
+   * @return the location of the artifact within the store
+   * @throws IOException if the artifact could neither be fetched nor found within the store
+   */
+  public Path fetch(String repoUrl, String path) throws IOException {
+    Path target = root.resolve(path).toAbsolutePath().normalize();
+    synchronized(LOCKS.computeIfAbsent(target, p -> new Object())) {
+      return fetch(repoUrl, path, target);
+    }
+  }
+
+  private Path fetch(String repoUrl, String path, Path target) throws IOException {
+    Path metaFile = target.resolveSibling(target.getFileName() + META_SUFFIX);
+    Map<String, String> meta = Files.isRegularFile(target) ? readMeta(metaFile) : new HashMap<>();
+    URL url = new URL(repoUrl + path);
+    String etag = null, lastModified = null;
+    try {
+      URLConnection connection = url.openConnection();
+      if(connection instanceof HttpURLConnection) {
+        HttpURLConnection head = (HttpURLConnection) connection;
+        try {
+          head.setRequestMethod("HEAD");
+          if(meta.containsKey("etag")) head.setRequestProperty("If-None-Match", meta.get("etag"));
+          if(meta.containsKey("lastModified")) head.setRequestProperty("If-Modified-Since", meta.get("lastModified"));
+          if(head.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            LOGGER.debug(path + " is up to date");
+            return target;
+          }
+          etag = head.getHeaderField("ETag");
+          lastModified = head.getHeaderField("Last-Modified");
+        } finally {
+          head.disconnect();
+        }
+      }
+      Downloader.download(url, target, downloadSegments, fetchChecksum(repoUrl + path));
+    } catch(IOException e) {
+      if(!Files.isRegularFile(target)) throw e;
+      LOGGER.warn("Could not revalidate " + path + " against " + repoUrl + ", using the stored copy");
+      return target;
+    }
+    writeMeta(metaFile, etag, lastModified);
+    return target;
+  }
+
+  /**
+   * Fetches the published SHA-512 checksum of an artifact.
+   *
+   * @return the checksum or null, if the repo does not publish one
+   */
+  private static String fetchChecksum(String artifactUrl) {
+    byte[] buf = new byte[128];
+    try {
+      if(Util.readSized(artifactUrl + ".sha512", buf) == -1) return null;
+    } catch(IOException e) {
+      return null;
+    }
+    return new String(buf, StandardCharsets.US_ASCII);
+  }
+
+  private static Map<String, String> readMeta(Path metaFile) throws IOException {
+    Map<String, String> meta = new HashMap<>();
+    if(!Files.isRegularFile(metaFile)) return meta;
+    for(String line : Files.readAllLines(metaFile, StandardCharsets.UTF_8)) {
+      int sep = line.indexOf(' ');
+      if(sep > 0) meta.put(line.substring(0, sep), line.substring(sep + 1));
+    }
+    return meta;
+  }
+
+  private static void writeMeta(Path metaFile, String etag, String lastModified) throws IOException {
+    StringBuilder builder = new StringBuilder();
+    if(etag != null) builder.append("etag ").append(etag).append('\n');
+    if(lastModified != null) builder.append("lastModified ").append(lastModified).append('\n');
+    Path tmp = Files.createTempFile(metaFile.getParent(), metaFile.getFileName().toString(), ".tmp");
+    try {
+      Files.write(tmp, builder.toString().getBytes(StandardCharsets.UTF_8));
+      Files.move(tmp, metaFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+}
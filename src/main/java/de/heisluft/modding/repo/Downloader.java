@@ -0,0 +1,304 @@
+package de.heisluft.modding.repo;
+
+import de.heisluft.modding.util.Hashing;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Downloads files via HTTP into a partial file next to their target, which survives interruptions. If the server
+ * supports range requests, a later download resumes from where the last one stopped. Large files can be downloaded
+ * as several segments in parallel, whose progress is tracked in a state file next to the partial file. The ETag or
+ * Last-Modified date of the partial file is kept as well and sent along as If-Range, so that the partial file of an
+ * artifact which was republished in the meantime is not extended with bytes of the new one.
+ * Files are only moved to their target once complete and verified. Downloads to the same target are serialized, both
+ * within the JVM and across processes sharing a cache directory, via a lock file next to the partial file.
+ */
+public final class Downloader {
+  private static final Logger LOGGER = Logger.getLogger("Downloader");
+  /** Files smaller than this are never segmented */
+  private static final long MIN_SEGMENTED_SIZE = 4 << 20;
+  /** Progress of segments is persisted whenever this many bytes were written by a segment */
+  private static final long STATE_INTERVAL = 1 << 20;
+  private static final int CONNECT_TIMEOUT = 30_000, READ_TIMEOUT = 60_000;
+  /** Threads of the same JVM can't wait on each others file locks, they synchronize on these instead */
+  private static final Map<Path, Object> LOCKS = new ConcurrentHashMap<>();
+
+  private Downloader() {}
+
+  /**
+   * Downloads url to target, resuming an earlier interrupted download if possible.
+   *
+   * @param url the url to download
+   * @param target the location to move the file to once complete
+   * @param segments the number of segments to download in parallel. Only used if the server supports range requests
+   *                 and the file is large enough
+   * @param expectedSha512Hex the hash to verify the download against, may be null. If target already matches it once
+   *                          the lock is acquired, e.g. because another process just downloaded it, nothing is downloaded
+   * @throws IOException if the download failed or the downloaded file did not match the expected hash. In the latter
+   *                     case, the partial file is deleted
+   */
+  public static void download(URL url, Path target, int segments, String expectedSha512Hex) throws IOException {
+    Path part = target.resolveSibling(target.getFileName() + ".part").toAbsolutePath().normalize();
+    Files.createDirectories(part.getParent());
+    synchronized(LOCKS.computeIfAbsent(part, p -> new Object())) {
+      // The lock file is never deleted, a process waiting on it would otherwise hold a lock no one else sees
+      try(FileChannel lockChannel = FileChannel.open(part.resolveSibling(part.getFileName() + ".lock"),
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+        FileLock lock = lockChannel.lock();
+        try {
+          if(expectedSha512Hex != null && Files.isRegularFile(target) && expectedSha512Hex.equals(Hashing.sha512Hex(target))) return;
+          download(url, target, part, segments, expectedSha512Hex);
+        } finally {
+          lock.release();
+        }
+      }
+    }
+  }
+
+  private static void download(URL url, Path target, Path part, int segments, String expectedSha512Hex) throws IOException {
+    Path state = part.resolveSibling(part.getFileName() + ".state");
+    Path validatorFile = part.resolveSibling(part.getFileName() + ".validator");
+    String validator = Files.isRegularFile(validatorFile) ? new String(Files.readAllBytes(validatorFile), StandardCharsets.UTF_8) : null;
+    long length = -1;
+    boolean acceptsRanges = false;
+    boolean hasState = Files.isRegularFile(state);
+    String currentValidator = null;
+    URLConnection connection = segments > 1 || hasState ? open(url) : null;
+    if(connection instanceof HttpURLConnection) {
+      HttpURLConnection head = (HttpURLConnection) connection;
+      try {
+        head.setRequestMethod("HEAD");
+        if(head.getResponseCode() == HttpURLConnection.HTTP_OK) {
+          length = head.getContentLengthLong();
+          acceptsRanges = "bytes".equalsIgnoreCase(head.getHeaderField("Accept-Ranges"));
+          currentValidator = validatorOf(head);
+        }
+      } finally {
+        head.disconnect();
+      }
+    }
+    // Segments of a republished file must not be mixed with the ones already written
+    boolean stateValid = currentValidator != null && currentValidator.equals(validator);
+    long[][] segmentRanges = acceptsRanges && length >= 0 && stateValid ? readState(state, length) : null;
+    if(segmentRanges == null && acceptsRanges && segments > 1 && length >= MIN_SEGMENTED_SIZE) {
+      segmentRanges = split(length, segments);
+      writeValidator(validatorFile, currentValidator);
+    }
+    if(segmentRanges != null) downloadSegmented(url, part, state, length, segmentRanges, currentValidator);
+    else {
+      // A partial file of a segmented download has gaps, it can't be appended to
+      if(hasState) Files.deleteIfExists(part);
+      Files.deleteIfExists(state);
+      downloadSingle(url, part, validatorFile);
+    }
+    if(expectedSha512Hex != null) {
+      String actual = Hashing.sha512Hex(part);
+      if(!actual.equals(expectedSha512Hex)) {
+        Files.deleteIfExists(part);
+        throw new IOException("Checksum mismatch for " + url + ", expected: " + expectedSha512Hex + ", computed: " + actual);
+      }
+    }
+    Files.move(part, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    Files.deleteIfExists(state);
+    Files.deleteIfExists(validatorFile);
+  }
+
+  /**
+   * Downloads with a single connection, appending to an existing partial file if the server honors the range and the
+   * file did not change since the partial file was started.
+   */
+  private static void downloadSingle(URL url, Path part, Path validatorFile) throws IOException {
+    String validator = Files.isRegularFile(validatorFile) ? new String(Files.readAllBytes(validatorFile), StandardCharsets.UTF_8) : null;
+    // Without a validator, there is no telling whether the partial file belongs to the current version
+    long existing = validator != null && Files.isRegularFile(part) ? Files.size(part) : 0;
+    URLConnection connection = open(url);
+    if(existing > 0) {
+      connection.setRequestProperty("Range", "bytes=" + existing + "-");
+      connection.setRequestProperty("If-Range", validator);
+    }
+    try {
+      boolean resumed = false;
+      if(connection instanceof HttpURLConnection) {
+        int code = ((HttpURLConnection) connection).getResponseCode();
+        // The partial file already holds everything. With a changed file, the server would have answered 200
+        if(code == 416 && existing > 0) return;
+        resumed = code == HttpURLConnection.HTTP_PARTIAL;
+      }
+      if(existing > 0) LOGGER.info(resumed ? "Resuming download of " + url + " at " + existing + " bytes" : "Cannot resume " + url + ", restarting");
+      if(!resumed) writeValidator(validatorFile, validatorOf(connection));
+      long expected = connection.getContentLengthLong(), written;
+      try(InputStream is = connection.getInputStream(); OutputStream os = resumed ?
+          Files.newOutputStream(part, StandardOpenOption.APPEND) : Files.newOutputStream(part)) {
+        written = is.transferTo(os);
+      }
+      // Keep the partial file, so the next attempt can resume
+      if(expected >= 0 && written < expected) throw new IOException("Premature end of " + url + " after " + written + " of " + expected + " bytes");
+    } finally {
+      if(connection instanceof HttpURLConnection) ((HttpURLConnection) connection).disconnect();
+    }
+  }
+
+  private static void downloadSegmented(URL url, Path part, Path state, long length, long[][] segments, String validator) throws IOException {
+    // Progress of each segment, as number of bytes already written
+    AtomicLongArray done = new AtomicLongArray(segments.length);
+    for(int i = 0; i < segments.length; i++) done.set(i, segments[i][2]);
+    ExecutorService executor = Executors.newFixedThreadPool(segments.length);
+    try(FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+      if(channel.size() > length) channel.truncate(length);
+      writeState(state, length, segments, done);
+      List<Future<?>> futures = new ArrayList<>();
+      for(int i = 0; i < segments.length; i++) {
+        int segment = i;
+        futures.add(executor.submit(() -> {
+          downloadSegment(url, validator, channel, segments[segment][0], segments[segment][1], segment, done, state, length, segments);
+          return null;
+        }));
+      }
+      // Let the other segments finish even if one fails, so that no one writes to the state once the lock is released
+      IOException failure = null;
+      for(Future<?> future : futures) {
+        try {
+          future.get();
+        } catch(ExecutionException e) {
+          IOException cause = e.getCause() instanceof IOException ? (IOException) e.getCause() :
+              e.getCause() instanceof UncheckedIOException ? ((UncheckedIOException) e.getCause()).getCause() :
+              new IOException("Could not download " + url, e.getCause());
+          if(failure == null) failure = cause;
+          else failure.addSuppressed(cause);
+        }
+      }
+      if(failure != null) throw failure;
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while downloading " + url, e);
+    } finally {
+      executor.shutdownNow();
+      // Keep track of what was written, so that an interrupted download can be resumed
+      if(Files.isRegularFile(part)) synchronized(segments) {
+        writeState(state, length, segments, done);
+      }
+    }
+  }
+
+  private static void downloadSegment(URL url, String validator, FileChannel channel, long start, long end, int segment,
+      AtomicLongArray done, Path state, long length, long[][] segments) throws IOException {
+    long from = start + done.get(segment);
+    if(from > end) return;
+    HttpURLConnection connection = (HttpURLConnection) open(url);
+    connection.setRequestProperty("Range", "bytes=" + from + "-" + end);
+    // If the file changed after the HEAD request, the server answers 200 and the next attempt starts over
+    if(validator != null) connection.setRequestProperty("If-Range", validator);
+    try {
+      if(connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL)
+        throw new IOException("Server did not honor range request for " + url + ": " + connection.getResponseCode());
+      try(InputStream is = connection.getInputStream()) {
+        byte[] buf = new byte[65536];
+        long pos = from, sinceState = 0;
+        int read;
+        while(pos <= end && (read = is.read(buf, 0, (int) Math.min(buf.length, end - pos + 1))) != -1) {
+          ByteBuffer bb = ByteBuffer.wrap(buf, 0, read);
+          while(bb.hasRemaining()) pos += channel.write(bb, pos);
+          done.set(segment, pos - start);
+          if((sinceState += read) >= STATE_INTERVAL) {
+            sinceState = 0;
+            synchronized(segments) {
+              writeState(state, length, segments, done);
+            }
+          }
+        }
+        if(pos <= end) throw new IOException("Premature end of segment " + segment + " of " + url);
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  /**
+   * Opens a connection which fails instead of hanging forever if the server stops responding, so that the download
+   * can be resumed.
+   */
+  private static URLConnection open(URL url) throws IOException {
+    URLConnection connection = url.openConnection();
+    connection.setConnectTimeout(CONNECT_TIMEOUT);
+    connection.setReadTimeout(READ_TIMEOUT);
+    return connection;
+  }
+
+  /**
+   * Extracts a validator usable with If-Range from a response: a strong ETag if present, the Last-Modified date otherwise.
+   *
+   * @return the validator, or null if the response has neither
+   */
+  private static String validatorOf(URLConnection connection) {
+    String etag = connection.getHeaderField("ETag");
+    if(etag != null && !etag.startsWith("W/")) return etag;
+    return connection.getHeaderField("Last-Modified");
+  }
+
+  private static void writeValidator(Path validatorFile, String validator) throws IOException {
+    if(validator == null) Files.deleteIfExists(validatorFile);
+    else Files.write(validatorFile, validator.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Splits length bytes into count ranges of the form {start, end (inclusive), done}.
+   */
+  private static long[][] split(long length, int count) {
+    long[][] result = new long[count][];
+    long size = (length + count - 1) / count;
+    for(int i = 0; i < count; i++) result[i] = new long[]{i * size, Math.min(length, (i + 1) * size) - 1, 0};
+    return result;
+  }
+
+  /**
+   * Reads the segment state of an interrupted download, or null if there is none for a file of the given length.
+   */
+  private static long[][] readState(Path state, long length) throws IOException {
+    if(!Files.isRegularFile(state)) return null;
+    List<String> lines = Files.readAllLines(state, StandardCharsets.UTF_8);
+    if(lines.isEmpty() || !lines.get(0).equals(String.valueOf(length))) return null;
+    long[][] result = new long[lines.size() - 1][];
+    try {
+      for(int i = 1; i < lines.size(); i++) {
+        String[] parts = lines.get(i).split(" ");
+        result[i - 1] = new long[]{Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2])};
+      }
+    } catch(RuntimeException e) {
+      return null;
+    }
+    return result.length == 0 ? null : result;
+  }
+
+  private static void writeState(Path state, long length, long[][] segments, AtomicLongArray done) throws IOException {
+    StringBuilder builder = new StringBuilder().append(length).append('\n');
+    for(int i = 0; i < segments.length; i++)
+      builder.append(segments[i][0]).append(' ').append(segments[i][1]).append(' ').append(done.get(i)).append('\n');
+    Path tmp = state.resolveSibling(state.getFileName() + ".tmp");
+    Files.write(tmp, builder.toString().getBytes(StandardCharsets.UTF_8));
+    Files.move(tmp, state, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+}
@@ -1,46 +1,52 @@
 package de.heisluft.modding.repo;
 
+import de.heisluft.modding.util.Hashing;
 import de.heisluft.modding.util.MavenMetaUtil;
 import de.heisluft.modding.util.Util;
 import org.apache.log4j.Logger;
-import org.gradle.api.invocation.Gradle;
 
 import java.io.*;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
+/**
+ * Resolves minecraft jars into a local cache. Repos are cheap to create, they only hold their configuration. All
+ * state lives on disk, so that repos can be created at execution time, without relying on the plugin being applied
+ * within the same build.
+ */
 public class MCRepo {
 
-  private static MCRepo instance;
   private final String repoURL;
   private final Path cacheDir;
+  private final int downloadSegments;
+  private final MavenMetaUtil metaUtil;
   private static final Logger LOGGER = Logger.getLogger("MCRepo");
 
-  private MCRepo(Path cacheDir, String repoURL) throws IOException {
+  /**
+   * @param cacheDir the directory to cache jars in
+   * @param repoURL the url of the maven repo hosting the jars
+   * @param downloadSegments the number of segments jars are downloaded in, see {@link Downloader}
+   * @param metaUtil the metadata cache to check available versions with
+   */
+  public MCRepo(Path cacheDir, String repoURL, int downloadSegments, MavenMetaUtil metaUtil) {
     this.repoURL = repoURL;
     this.cacheDir = cacheDir;
-  }
-
-  public static void init(Gradle gradle, String repoURL) {
-    try {
-      instance = new MCRepo(Util.getCache(gradle, "mc_repo"), repoURL);
-    } catch (IOException e) {
-      throw new UncheckedIOException(e);
-    }
-  }
-
-  public static MCRepo getInstance() {
-    if(instance == null) throw new IllegalStateException("Repo has not been initialized. Call #init(Gradle) first");
-    return instance;
+    this.downloadSegments = downloadSegments;
+    this.metaUtil = metaUtil;
   }
 
   public Path resolve(String name, String version) throws IOException {
     if(!"minecraft".equals(name) && !"minecraft-server".equals(name))
       throw new IllegalArgumentException("Repo only resolves minecraft jars");
+    String fName = name + "-" + version + ".jar";
+    Path targetFile = cacheDir.resolve(fName);
+    // Jars are never republished, a file verified before is still valid as long as it was not touched
+    if(Hashing.verifiedSha512Hex(targetFile) != null) return targetFile;
+
     boolean repoReachable, versionExists;
     try {
-      versionExists = MavenMetaUtil.versionExists(repoURL, "com.mojang" , name, version);
+      versionExists = metaUtil.versionExists(repoURL, "com.mojang" , name, version);
       repoReachable = true;
     } catch (IOException e) {
       versionExists = false;
@@ -49,8 +55,6 @@ public class MCRepo {
       e.printStackTrace();
     }
 
-    String fName = name + "-" + version + ".jar";
-    Path targetFile = cacheDir.resolve(fName);
     boolean fileExistsLocally = Files.isRegularFile(targetFile);
 
     if(!repoReachable) {
@@ -70,25 +74,17 @@ public class MCRepo {
       Util.readSized(targetFileURL + ".sha512", hashBuf);
       expHash = new String(hashBuf);
     }
-    if(Files.isRegularFile(targetFile)) {
-      String compHash = Util.bytesToHex(Util.SHA_512.digest(Files.readAllBytes(targetFile)));
-      if(!compHash.equals(expHash)) {
-        LOGGER.warn("warning: checksum mismatch for file " + targetFile.toAbsolutePath() + ", expected: " + expHash + ", computed: " + compHash);
+    if(fileExistsLocally) {
+      String compHash = Hashing.sha512Hex(targetFile);
+      if(compHash.equals(expHash)) {
+        Hashing.recordVerified(targetFile, compHash);
+        return targetFile;
       }
-      return targetFile;
-    }
-    try(InputStream is = new URL(targetFileURL).openStream(); OutputStream os = Files.newOutputStream(targetFile)) {
-      byte[] buf = new byte[8192];
-      int read;
-      while ((read = is.read(buf)) != -1) {
-        Util.SHA_512.update(buf, 0, read);
-        os.write(buf, 0, read);
-      }
-    }
-    String compHash = Util.bytesToHex(Util.SHA_512.digest());
-    if(!compHash.equals(expHash)) {
-      LOGGER.warn("warning: checksum mismatch for file " + targetFile.toAbsolutePath() + ", expected: " + expHash + ", computed: " + compHash);
+      LOGGER.warn("warning: checksum mismatch for file " + targetFile.toAbsolutePath() + ", expected: " + expHash + ", computed: " + compHash + ". Downloading it again");
     }
+    // The download goes to a partial file next to the target, so no one ever sees a partial or unverified jar
+    Downloader.download(new URL(targetFileURL), targetFile, downloadSegments, expHash);
+    Hashing.recordVerified(targetFile, expHash);
     return targetFile;
   }
 }
@@ -0,0 +1,93 @@
+package de.heisluft.modding.services;
+
+import de.heisluft.modding.tasks.MavenDownload;
+import de.heisluft.modding.util.ArtifactIdentifier;
+import de.heisluft.modding.util.MavenMetaUtil;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Resolves the DeobfTools jar on first use and shares it among all projects of a build. The jar is kept within the
+ * artifact store, and the version it was resolved to is remembered for a configurable time to live, within which the
+ * repo is not contacted at all.
+ */
+public abstract class DeobfToolsService implements BuildService<DeobfToolsService.Parameters> {
+
+  public interface Parameters extends BuildServiceParameters {
+    Property<String> getRepoUrl();
+    /** The version to resolve, may be {@code latest} */
+    Property<String> getVersion();
+    DirectoryProperty getStoreDir();
+    DirectoryProperty getMetadataCacheDir();
+    Property<Duration> getTtl();
+  }
+
+  private File jar;
+
+  /**
+   * Returns the DeobfTools jar, resolving it if this was not done before within this build.
+   *
+   * @return the location of the jar
+   */
+  public synchronized File getJar() {
+    if(jar != null) return jar;
+    Parameters params = getParameters();
+    Path storeDir = params.getStoreDir().get().getAsFile().toPath();
+    Path record = storeDir.resolve("DeobfTools-" + params.getVersion().get() + ".resolved");
+    try {
+      Path resolved = readRecord(record, params.getTtl().get());
+      if(resolved == null) {
+        resolved = MavenDownload.resolve(
+            params.getRepoUrl().get(),
+            new ArtifactIdentifier("de.heisluft.deobf.tooling", "DeobfTools", params.getVersion().get(), "all", null),
+            storeDir,
+            new MavenMetaUtil(params.getMetadataCacheDir().get().getAsFile().toPath(), params.getTtl().get())
+        );
+        writeRecord(record, resolved);
+      }
+      return jar = resolved.toFile();
+    } catch(IOException e) {
+      throw new UncheckedIOException("Could not resolve DeobfTools", e);
+    }
+  }
+
+  /**
+   * Reads the location recorded by the last resolution, if it is younger than ttl and the jar still exists.
+   */
+  private static Path readRecord(Path record, Duration ttl) throws IOException {
+    if(!Files.isRegularFile(record)) return null;
+    List<String> lines = Files.readAllLines(record, StandardCharsets.UTF_8);
+    if(lines.size() != 2) return null;
+    try {
+      if(System.currentTimeMillis() - Long.parseLong(lines.get(0)) >= ttl.toMillis()) return null;
+    } catch(NumberFormatException e) {
+      return null;
+    }
+    Path jar = Paths.get(lines.get(1));
+    return Files.isRegularFile(jar) ? jar : null;
+  }
+
+  private static void writeRecord(Path record, Path jar) throws IOException {
+    Files.createDirectories(record.getParent());
+    Path tmp = Files.createTempFile(record.getParent(), record.getFileName().toString(), ".tmp");
+    try {
+      Files.write(tmp, List.of(String.valueOf(System.currentTimeMillis()), jar.toAbsolutePath().toString()), StandardCharsets.UTF_8);
+      Files.move(tmp, record, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+}
@@ -0,0 +1,293 @@
+package de.heisluft.modding.services;
+
+import de.heisluft.modding.util.GcLogArguments;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.SetProperty;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+import org.gradle.tooling.events.FinishEvent;
+import org.gradle.tooling.events.OperationCompletionListener;
+import org.gradle.tooling.events.task.TaskFailureResult;
+import org.gradle.tooling.events.task.TaskFinishEvent;
+import org.gradle.tooling.events.task.TaskOperationResult;
+import org.gradle.tooling.events.task.TaskSkippedResult;
+import org.gradle.tooling.events.task.TaskSuccessResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipFile;
+
+/**
+ * Records every run of the pipeline stages of a project into a history file, one JSON object per line. Wall times and
+ * outcomes are taken from task completion events. The files a stage read and wrote are reported by the stage itself via
+ * {@link #record(String, Collection, Collection, File)}, as Gradle only knows about them while the task executes, but
+ * they are only measured once the completion event arrived, so that measuring does not add to the wall time.
+ */
+public abstract class PipelineMetrics implements BuildService<PipelineMetrics.Parameters>, OperationCompletionListener {
+
+  public interface Parameters extends BuildServiceParameters {
+    /** The file to append runs to */
+    RegularFileProperty getHistoryFile();
+    /** The paths of the tasks to record */
+    SetProperty<String> getTaskPaths();
+  }
+
+  /** All runs of one build share this id */
+  private final long buildId = System.currentTimeMillis();
+  private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+
+  /**
+   * The files a stage read and wrote during one execution, measured once it completed.
+   */
+  private static final class Pending {
+    final Collection<File> inputs, outputs;
+    final File gcLogDir;
+
+    Pending(Collection<File> inputs, Collection<File> outputs, File gcLogDir) {
+      this.inputs = inputs;
+      this.outputs = outputs;
+      this.gcLogDir = gcLogDir;
+    }
+  }
+
+  /**
+   * What a stage read and wrote during one execution. Bytes are the total size of the files, not the amount of IO.
+   */
+  public static final class Sample {
+    public final long bytesRead, bytesWritten, entriesRead, entriesWritten;
+    /** The peak heap usage of the JVMs forked by the stage in bytes, or -1 if unknown */
+    public final long peakHeap;
+
+    public Sample(long bytesRead, long bytesWritten, long entriesRead, long entriesWritten, long peakHeap) {
+      this.bytesRead = bytesRead;
+      this.bytesWritten = bytesWritten;
+      this.entriesRead = entriesRead;
+      this.entriesWritten = entriesWritten;
+      this.peakHeap = peakHeap;
+    }
+  }
+
+  /**
+   * One recorded run of a stage.
+   */
+  public static final class Run {
+    public final long buildId;
+    public final String task;
+    /** One of executed, up-to-date, from-cache, skipped or failed */
+    public final String outcome;
+    public final long startTime, endTime;
+    /** What the stage read and wrote, null unless it was executed */
+    public final Sample sample;
+
+    public Run(long buildId, String task, String outcome, long startTime, long endTime, Sample sample) {
+      this.buildId = buildId;
+      this.task = task;
+      this.outcome = outcome;
+      this.startTime = startTime;
+      this.endTime = endTime;
+      this.sample = sample;
+    }
+
+    public long wallTime() {
+      return endTime - startTime;
+    }
+
+    String toJson() {
+      StringBuilder json = new StringBuilder("{\"build\":").append(buildId)
+          .append(",\"task\":\"").append(task.replace("\\", "\\\\").replace("\"", "\\\"")).append('"')
+          .append(",\"outcome\":\"").append(outcome).append('"')
+          .append(",\"start\":").append(startTime)
+          .append(",\"end\":").append(endTime);
+      if(sample != null) json.append(",\"bytesRead\":").append(sample.bytesRead)
+          .append(",\"bytesWritten\":").append(sample.bytesWritten)
+          .append(",\"entriesRead\":").append(sample.entriesRead)
+          .append(",\"entriesWritten\":").append(sample.entriesWritten)
+          .append(",\"peakHeap\":").append(sample.peakHeap);
+      return json.append('}').toString();
+    }
+
+    static Run fromJson(String line) {
+      Map<String, String> values = parseFlatObject(line);
+      Sample sample = values.containsKey("bytesRead") ? new Sample(
+          Long.parseLong(values.get("bytesRead")),
+          Long.parseLong(values.get("bytesWritten")),
+          Long.parseLong(values.get("entriesRead")),
+          Long.parseLong(values.get("entriesWritten")),
+          Long.parseLong(values.get("peakHeap"))
+      ) : null;
+      return new Run(Long.parseLong(values.get("build")), values.get("task"), values.get("outcome"),
+          Long.parseLong(values.get("start")), Long.parseLong(values.get("end")), sample);
+    }
+  }
+
+  /**
+   * Stores the files a stage read and wrote, to be measured and written along with its run once the task completed.
+   *
+   * @param taskPath the path of the stage
+   * @param inputs the input files of the stage, without its classpath
+   * @param outputs the output files of the stage
+   * @param gcLogDir the directory the forked JVMs of the stage logged their collections to, see {@link GcLogArguments}
+   */
+  public void record(String taskPath, Collection<File> inputs, Collection<File> outputs, File gcLogDir) {
+    pending.put(taskPath, new Pending(inputs, outputs, gcLogDir));
+  }
+
+  @Override
+  public void onFinish(FinishEvent event) {
+    if(!(event instanceof TaskFinishEvent)) return;
+    String path = ((TaskFinishEvent) event).getDescriptor().getTaskPath();
+    if(!getParameters().getTaskPaths().get().contains(path)) return;
+    TaskOperationResult result = ((TaskFinishEvent) event).getResult();
+    Pending files = pending.remove(path);
+    try {
+      Sample sample = files == null ? null : measure(files.inputs, files.outputs, files.gcLogDir);
+      Run run = new Run(buildId, path, outcomeOf(result), result.getStartTime(), result.getEndTime(), sample);
+      append(getParameters().getHistoryFile().get().getAsFile().toPath(), run);
+    } catch(IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static String outcomeOf(TaskOperationResult result) {
+    if(result instanceof TaskFailureResult) return "failed";
+    if(result instanceof TaskSkippedResult) return "skipped";
+    if(result instanceof TaskSuccessResult) {
+      if(((TaskSuccessResult) result).isFromCache()) return "from-cache";
+      if(((TaskSuccessResult) result).isUpToDate()) return "up-to-date";
+    }
+    return "executed";
+  }
+
+  private static synchronized void append(Path history, Run run) throws IOException {
+    Files.createDirectories(history.getParent());
+    Files.write(history, (run.toJson() + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+  }
+
+  /**
+   * Reads all runs from a history file, skipping lines which can't be parsed, e.g. ones cut off by a killed build.
+   *
+   * @param history the file to read
+   * @return the runs in the order they were recorded, empty if there is no history yet
+   * @throws IOException if the file could not be read
+   */
+  public static List<Run> readHistory(Path history) throws IOException {
+    List<Run> runs = new ArrayList<>();
+    if(!Files.isRegularFile(history)) return runs;
+    for(String line : Files.readAllLines(history, StandardCharsets.UTF_8)) {
+      try {
+        runs.add(Run.fromJson(line));
+      } catch(RuntimeException e) {
+        // Skip the line
+      }
+    }
+    return runs;
+  }
+
+  /**
+   * Measures what a stage read and wrote. Bytes are the total size of all files, files are counted as one entry each,
+   * jars and zips as the number of entries they contain, directories as the entries of all files within them.
+   *
+   * @param inputs the input files of the stage
+   * @param outputs the output files of the stage
+   * @param gcLogDir the directory the forked JVMs of the stage logged their collections to, see {@link GcLogArguments}
+   * @return the measured sample
+   * @throws IOException if the files could not be read
+   */
+  public static Sample measure(Collection<File> inputs, Collection<File> outputs, File gcLogDir) throws IOException {
+    long[] read = measure(inputs), written = measure(outputs);
+    return new Sample(read[0], written[0], read[1], written[1], GcLogArguments.peakHeap(gcLogDir));
+  }
+
+  /**
+   * @return {bytes, entries}
+   */
+  private static long[] measure(Collection<File> files) throws IOException {
+    long[] result = new long[2];
+    for(File file : files) {
+      if(file.isFile()) measureFile(file.toPath(), result);
+      else if(file.isDirectory()) {
+        List<Path> contents;
+        try(Stream<Path> s = Files.walk(file.toPath())) {
+          contents = s.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        for(Path path : contents) measureFile(path, result);
+      }
+    }
+    return result;
+  }
+
+  private static void measureFile(Path file, long[] result) throws IOException {
+    result[0] += Files.size(file);
+    String name = file.getFileName().toString();
+    if(!name.endsWith(".jar") && !name.endsWith(".zip")) {
+      result[1]++;
+      return;
+    }
+    try(ZipFile zip = new ZipFile(file.toFile())) {
+      result[1] += zip.size();
+    } catch(IOException e) {
+      // Not a valid zip after all
+      result[1]++;
+    }
+  }
+
+  /**
+   * Parses a JSON object with string and number values only, as written by {@link Run#toJson()}.
+   */
+  private static Map<String, String> parseFlatObject(String json) {
+    Map<String, String> values = new HashMap<>();
+    int pos = json.indexOf('{') + 1;
+    if(pos == 0) throw new IllegalArgumentException("Not an object: " + json);
+    StringBuilder buf = new StringBuilder();
+    while(pos < json.length()) {
+      char c = json.charAt(pos);
+      if(c == '}') return values;
+      if(c == ',' || Character.isWhitespace(c)) {
+        pos++;
+        continue;
+      }
+      pos = readString(json, pos, buf);
+      String key = buf.toString();
+      pos = json.indexOf(':', pos) + 1;
+      while(Character.isWhitespace(json.charAt(pos))) pos++;
+      if(json.charAt(pos) == '"') pos = readString(json, pos, buf);
+      else {
+        int end = pos;
+        while(end < json.length() && json.charAt(end) != ',' && json.charAt(end) != '}') end++;
+        buf.setLength(0);
+        buf.append(json, pos, end);
+        pos = end;
+      }
+      values.put(key, buf.toString().trim());
+    }
+    throw new IllegalArgumentException("Unterminated object: " + json);
+  }
+
+  /**
+   * Reads the string starting at the quote at pos into buf.
+   *
+   * @return the position after the closing quote
+   */
+  private static int readString(String json, int pos, StringBuilder buf) {
+    if(json.charAt(pos) != '"') throw new IllegalArgumentException("Expected a string at " + pos + ": " + json);
+    buf.setLength(0);
+    for(pos++; json.charAt(pos) != '"'; pos++) {
+      if(json.charAt(pos) == '\\') pos++;
+      buf.append(json.charAt(pos));
+    }
+    return pos + 1;
+  }
+}
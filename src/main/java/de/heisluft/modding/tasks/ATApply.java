@@ -1,28 +1,51 @@
 package de.heisluft.modding.tasks;
 
 import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.tasks.CacheableTask;
 import org.gradle.api.tasks.InputFile;
 import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Applies access transformers to a jar. If there is no AT file, the input is copied as is, so that consumers can
+ * always depend on the output of this task.
+ */
+@CacheableTask
 public abstract class ATApply extends OutputtingJavaExec {
 
   public ATApply() {
-    onlyIf(t -> this.getATFile().isPresent() && this.getATFile().get().getAsFile().exists());
     getMainClass().set("de.heisluft.deobf.tooling.at.ATApplicator");
     setOutputFilename("minecraft-at.jar");
   }
 
   @InputFile
+  @PathSensitive(PathSensitivity.RELATIVE)
   public abstract RegularFileProperty getInput();
 
   @InputFile
+  @PathSensitive(PathSensitivity.RELATIVE)
   @Optional
   public abstract RegularFileProperty getATFile();
 
   @TaskAction
   @Override
   public void exec() {
+    if(!getATFile().isPresent() || !getATFile().get().getAsFile().exists()) {
+      try {
+        Files.createDirectories(getOutput().get().getAsFile().toPath().getParent());
+        Files.copy(getInput().get().getAsFile().toPath(), getOutput().get().getAsFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+      } catch(IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return;
+    }
     args(
         getInput().get().getAsFile().getAbsolutePath(),
         getATFile().get().getAsFile().getAbsolutePath(),
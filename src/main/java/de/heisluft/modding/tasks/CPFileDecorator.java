@@ -1,10 +1,8 @@
 package de.heisluft.modding.tasks;
 
 import org.gradle.api.DefaultTask;
-import org.gradle.api.artifacts.ConfigurationContainer;
-import org.gradle.api.artifacts.ResolvedArtifact;
+import org.gradle.api.file.ConfigurableFileCollection;
 import org.gradle.api.file.RegularFileProperty;
-import org.gradle.api.plugins.JavaPluginExtension;
 import org.gradle.api.provider.SetProperty;
 import org.gradle.api.tasks.*;
 
@@ -28,6 +26,19 @@ public abstract class CPFileDecorator extends DefaultTask {
   @InputFile
   public abstract RegularFileProperty getMinecraftJarPath();
 
+  /**
+   * The runtime classpath of the launcher, usually the runtimeClasspath configuration.
+   */
+  @InputFiles
+  public abstract ConfigurableFileCollection getRuntimeClasspath();
+
+  /**
+   * The runtime classpath of the game, usually the mcRuntimeClasspath configuration. These files are excluded from
+   * the launcher classpath.
+   */
+  @InputFiles
+  public abstract ConfigurableFileCollection getGameClasspath();
+
   public CPFileDecorator() {
     getPaths().convention(new HashSet<>());
     getOutput().set(getProject().getLayout().getBuildDirectory().dir(getName()).map(dir -> dir.file("cp.txt")));
@@ -37,17 +48,11 @@ public abstract class CPFileDecorator extends DefaultTask {
   @TaskAction
   public void generate() throws IOException {
     Set<File> bootStrapCP = new HashSet<>(getPaths().get());
-    ConfigurationContainer cfg = getProject().getConfigurations();
-    cfg.getByName("runtimeClasspath").getResolvedConfiguration().getResolvedArtifacts().stream()
-        .map(ResolvedArtifact::getFile)
-        .forEach(bootStrapCP::add);
-    Set<File> gameCP = new HashSet<>();
-    cfg.getByName("mcRuntimeClasspath").getResolvedConfiguration().getResolvedArtifacts().stream()
-        .map(ResolvedArtifact::getFile)
-        .forEach(gameCP::add);
+    bootStrapCP.addAll(getRuntimeClasspath().getFiles());
+    Set<File> gameCP = new HashSet<>(getGameClasspath().getFiles());
     bootStrapCP.removeAll(gameCP);
     gameCP.add(getMinecraftJarPath().get().getAsFile());
     Files.write(getOutput().get().getAsFile().toPath(), bootStrapCP.stream().map(File::getAbsolutePath).collect(Collectors.toList()));
     Files.write(getGameCPFile().get().getAsFile().toPath(), gameCP.stream().map(File::getAbsolutePath).collect(Collectors.toList()));
   }
-}
\ No newline at end of file
+}
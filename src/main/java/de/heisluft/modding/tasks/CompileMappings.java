@@ -0,0 +1,38 @@
+package de.heisluft.modding.tasks;
+
+import de.heisluft.modding.util.BinaryMappings;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+
+import java.io.IOException;
+
+/**
+ * Compiles a text mapping file into the binary format read by {@link BinaryMappings}, so that plugin-side consumers
+ * can memory-map it instead of parsing the text file again. None of the plugins register one, build scripts needing
+ * fast mapping lookups can.
+ */
+@CacheableTask
+public abstract class CompileMappings extends DefaultTask {
+
+  @InputFile
+  @PathSensitive(PathSensitivity.NONE)
+  public abstract RegularFileProperty getInput();
+
+  @OutputFile
+  public abstract RegularFileProperty getOutput();
+
+  public CompileMappings() {
+    getOutput().convention(getProject().getLayout().getBuildDirectory().dir(getName()).map(dir -> dir.file("mappings.frgb")));
+  }
+
+  @TaskAction
+  public void compile() throws IOException {
+    BinaryMappings.compile(getInput().get().getAsFile().toPath(), getOutput().get().getAsFile().toPath());
+  }
+}
@@ -1,43 +1,366 @@
 package de.heisluft.modding.tasks;
 
+import de.heisluft.modding.util.ClassReferences;
+import de.heisluft.modding.util.ClassSignature;
+import de.heisluft.modding.util.Hashing;
+import de.heisluft.modding.util.RawZipCopier;
 import de.heisluft.modding.util.Util;
+import org.gradle.api.file.Directory;
+import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.CacheableTask;
 import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.Internal;
 import org.gradle.api.tasks.JavaExec;
 import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
 import org.gradle.jvm.toolchain.JavaLanguageVersion;
 import org.gradle.jvm.toolchain.JavaToolchainService;
+import org.gradle.process.ExecOperations;
 
+import javax.inject.Inject;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
+@CacheableTask
 public abstract class Decomp extends JavaExec {
 
+  /** The directory cleaned before decompiling, resolved at configuration time */
+  private final Provider<Directory> workDir;
+
   public Decomp() {
     getMainClass().set("org.jetbrains.java.decompiler.main.decompiler.ConsoleDecompiler");
     setMaxHeapSize("4G");
     getJavaLauncher().set(getProject().getExtensions().getByType(JavaToolchainService.class).launcherFor(v -> v.getLanguageVersion().set(JavaLanguageVersion.of(11))));
     getOutput().convention(getProject().getLayout().getBuildDirectory().dir(getName()).map(dir -> dir.file(getInput().getAsFile().get().getName())));
+    getShards().convention(1);
+    getShardMaxHeapSize().convention("2G");
+    File cacheDir = Util.getCacheBase(getProject().getGradle()).resolve("decomp").toFile();
+    getCacheDir().convention(getProject().getLayout().dir(getProject().getProviders().provider(() -> cacheDir)));
+    getUseCache().convention(false);
+    workDir = getProject().getLayout().getBuildDirectory().dir(getName());
   }
 
   @InputFile
+  @PathSensitive(PathSensitivity.RELATIVE)
   public abstract RegularFileProperty getInput();
 
   @OutputFile
   public abstract RegularFileProperty getOutput();
 
+  /**
+   * The number of decompiler JVMs to run in parallel. If greater than one, the classes of the input jar are split into
+   * this many shards, keeping nested classes with their outer class. Each shard is decompiled with the full jar as
+   * library.
+   */
+  @Internal
+  public abstract Property<Integer> getShards();
+
+  /**
+   * The maximum heap size of each decompiler JVM when decompiling in shards.
+   */
+  @Internal
+  public abstract Property<String> getShardMaxHeapSize();
+
+  /**
+   * The directory decompiled classes are cached in. Entries are keyed by the bytes of a class and its nested classes,
+   * the {@link ClassSignature signatures} of the classes of the input jar they reference along with the supertypes of
+   * those, the decompiler classpath and its arguments. Changing the members of a referenced class thus invalidates an
+   * entry just like changing the class itself, changing only the code of a referenced class does not. The cache can be
+   * shared between projects and minecraft versions.
+   */
+  @Internal
+  public abstract DirectoryProperty getCacheDir();
+
+  /**
+   * If set to true, only classes missing from {@link #getCacheDir()} are decompiled. Defaults to false, as patches
+   * need the exact decompiler output and a wrong entry would spread through the build cache.
+   */
+  @Internal
+  public abstract Property<Boolean> getUseCache();
+
+  @Inject
+  protected abstract ExecOperations getExecOperations();
+
   @TaskAction
   @Override
   public void exec() {
     try {
-      Util.deleteContents(getProject().getLayout().getBuildDirectory().dir(getName()).get().getAsFile());
+      Util.deleteContents(workDir.get().getAsFile());
+      if(getUseCache().get()) decompileCached();
+      else if(getShards().get() > 1) decompileSharded();
+      else {
+        args(
+            getInput().get().getAsFile().getAbsolutePath(),
+            getOutput().get().getAsFile().getParentFile().getAbsolutePath()
+        );
+        super.exec();
+      }
+      // Sorts entries and drops the times they were written at, so the output only depends on the decompiled sources
+      OutputtingJavaExec.normalizeOutput(getOutput().get().getAsFile());
     } catch(IOException e) {
       throw new RuntimeException(e);
     }
-    args(
-        getInput().get().getAsFile().getAbsolutePath(),
-        getOutput().get().getAsFile().getParentFile().getAbsolutePath()
-    );
-    super.exec();
+  }
+
+  /**
+   * Groups the class entries of a jar by their outermost class.
+   *
+   * @param jar the jar to read
+   * @return a map of outer class names to the entry names of the outer class and all of its nested classes
+   */
+  static Map<String, List<String>> groupClasses(ZipFile jar) {
+    Map<String, List<String>> groups = new TreeMap<>();
+    jar.stream().map(ZipEntry::getName).filter(name -> name.endsWith(".class")).forEach(name -> {
+      String className = name.substring(0, name.length() - 6);
+      int nested = className.indexOf('$', className.lastIndexOf('/') + 1);
+      groups.computeIfAbsent(nested < 0 ? className : className.substring(0, nested), k -> new ArrayList<>()).add(name);
+    });
+    return groups;
+  }
+
+  private void decompileSharded() throws IOException {
+    File input = getInput().get().getAsFile();
+    Path workDir = getTemporaryDir().toPath();
+    Util.deleteContents(workDir.toFile());
+    List<Set<String>> shards;
+    try(ZipFile jar = new ZipFile(input)) {
+      shards = balance(jar, groupClasses(jar).values(), getShards().get());
+      // Resources are copied over by the decompiler, they only need to be in one shard
+      jar.stream().map(ZipEntry::getName).filter(name -> !name.endsWith(".class")).forEach(shards.get(0)::add);
+    }
+    List<Path> shardOutputs = decompile(input, shards, workDir);
+    mergeJars(shardOutputs, getOutput().get().getAsFile().toPath());
+  }
+
+  /**
+   * Distributes class groups among shards so that each shard holds roughly the same amount of bytecode.
+   */
+  private static List<Set<String>> balance(ZipFile jar, Collection<List<String>> classGroups, int shardCount) {
+    List<Set<String>> shards = new ArrayList<>();
+    for(int i = 0; i < shardCount; i++) shards.add(new HashSet<>());
+    // Largest groups first, each to the currently smallest shard
+    long[] shardSizes = new long[shardCount];
+    List<List<String>> groups = new ArrayList<>(classGroups);
+    groups.sort(Comparator.comparingLong((List<String> g) -> groupSize(jar, g)).reversed());
+    for(List<String> group : groups) {
+      int smallest = 0;
+      for(int i = 1; i < shardCount; i++) if(shardSizes[i] < shardSizes[smallest]) smallest = i;
+      shards.get(smallest).addAll(group);
+      shardSizes[smallest] += groupSize(jar, group);
+    }
+    return shards;
+  }
+
+  private void decompileCached() throws IOException {
+    File input = getInput().get().getAsFile();
+    Path cacheDir = getCacheDir().get().getAsFile().toPath();
+    Path workDir = getTemporaryDir().toPath();
+    Util.deleteContents(workDir.toFile());
+    String toolKey = toolKey();
+    try(ZipFile jar = new ZipFile(input)) {
+      Map<String, List<String>> groups = groupClasses(jar);
+      Map<String, byte[]> classes = new HashMap<>();
+      for(List<String> group : groups.values()) for(String name : group) {
+        try(InputStream is = jar.getInputStream(jar.getEntry(name))) {
+          classes.put(name, is.readAllBytes());
+        }
+      }
+      Map<String, String> classHashes = new ConcurrentHashMap<>();
+      Map<String, ClassSignature> signatures = new ConcurrentHashMap<>();
+      Map<String, Set<String>> references = new ConcurrentHashMap<>();
+      classes.entrySet().parallelStream().forEach(e -> {
+        classHashes.put(e.getKey(), Hashing.sha512Hex(e.getValue()));
+        signatures.put(e.getKey(), ClassSignature.of(e.getValue()));
+        Set<String> refs = new HashSet<>();
+        for(String ref : ClassReferences.of(e.getValue())) if(classes.containsKey(ref + ".class")) refs.add(ref + ".class");
+        references.put(e.getKey(), refs);
+      });
+      Map<String, Path> cached = new ConcurrentHashMap<>();
+      groups.entrySet().parallelStream().forEach(e -> {
+        String key = groupKey(toolKey, e.getValue(), references, classHashes, signatures);
+        cached.put(e.getKey(), cacheDir.resolve(key.substring(0, 2)).resolve(key + ".java"));
+      });
+      List<List<String>> misses = new ArrayList<>();
+      for(Map.Entry<String, List<String>> e : groups.entrySet())
+        if(!Files.isRegularFile(cached.get(e.getKey()))) misses.add(e.getValue());
+      getLogger().lifecycle("Decompiling {} of {} classes, {} are cached", misses.size(), groups.size(), groups.size() - misses.size());
+      if(!misses.isEmpty()) {
+        List<Path> shardOutputs = decompile(input, balance(jar, misses, Math.min(getShards().get(), misses.size())), workDir);
+        for(Path shardOutput : shardOutputs) {
+          try(ZipFile zip = new ZipFile(shardOutput.toFile())) {
+            for(ZipEntry entry : Collections.list(zip.entries())) {
+              if(!entry.getName().endsWith(".java")) continue;
+              Path target = cached.get(entry.getName().substring(0, entry.getName().length() - 5));
+              if(target == null) continue;
+              try(InputStream is = zip.getInputStream(entry)) {
+                store(is.readAllBytes(), target);
+              }
+            }
+          }
+        }
+      }
+      try(OutputStream os = Files.newOutputStream(getOutput().get().getAsFile().toPath()); ZipOutputStream zos = new ZipOutputStream(os)) {
+        for(ZipEntry entry : Collections.list(jar.entries())) {
+          if(entry.getName().endsWith(".class")) continue;
+          zos.putNextEntry(new ZipEntry(entry.getName()));
+          try(InputStream is = jar.getInputStream(entry)) {
+            is.transferTo(zos);
+          }
+          zos.closeEntry();
+        }
+        for(Map.Entry<String, Path> e : new TreeMap<>(cached).entrySet()) {
+          // The decompiler may fail to produce output for a class, it won't be cached then
+          if(!Files.isRegularFile(e.getValue())) continue;
+          zos.putNextEntry(new ZipEntry(e.getKey() + ".java"));
+          Files.copy(e.getValue(), zos);
+          zos.closeEntry();
+        }
+      }
+    }
+  }
+
+  /**
+   * Hashes the decompiler classpath and arguments, as any change to them may change the output of every class.
+   */
+  private String toolKey() throws IOException {
+    StringBuilder key = new StringBuilder(getMainClass().get());
+    for(File file : getClasspath().getFiles()) {
+      if(file.isFile()) key.append('\n').append(Hashing.sha512Hex(file.toPath()));
+      else key.append('\n').append(file.getAbsolutePath());
+    }
+    for(String arg : getArgs()) key.append('\n').append(arg);
+    return Hashing.sha512Hex(key.toString());
+  }
+
+  /**
+   * Hashes the bytes of a class group along with the signatures of the classes of the input jar it references and their
+   * supertypes. The decompiler output of a class only depends on the members those declare or inherit, not on their
+   * code, so editing a method body only invalidates the entries of the class itself.
+   */
+  private static String groupKey(String toolKey, List<String> group, Map<String, Set<String>> references,
+      Map<String, String> classHashes, Map<String, ClassSignature> signatures) {
+    Set<String> referenced = new TreeSet<>();
+    Deque<String> queue = new ArrayDeque<>();
+    for(String name : group) for(String ref : references.get(name)) if(referenced.add(ref)) queue.add(ref);
+    // Members may be inherited from the supertypes of a referenced class, which are not referenced themselves
+    while(!queue.isEmpty()) for(String supertype : signatures.get(queue.poll()).supertypes)
+      if(signatures.containsKey(supertype + ".class") && referenced.add(supertype + ".class")) queue.add(supertype + ".class");
+    group.forEach(referenced::remove);
+    StringBuilder key = new StringBuilder(toolKey);
+    for(String name : new TreeSet<>(group)) key.append('\n').append(name).append(' ').append(classHashes.get(name));
+    key.append("\nreferences");
+    for(String ref : referenced) key.append('\n').append(ref).append(' ').append(signatures.get(ref).hash);
+    return Hashing.sha512Hex(key.toString());
+  }
+
+
+  /**
+   * Writes a cache entry atomically, so that concurrent builds never observe partially written entries.
+   */
+  private static void store(byte[] content, Path target) throws IOException {
+    Files.createDirectories(target.getParent());
+    Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+    try {
+      Files.write(tmp, content);
+      Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  private static long groupSize(ZipFile jar, List<String> group) {
+    long size = 0;
+    for(String name : group) size += jar.getEntry(name).getSize();
+    return size;
+  }
+
+  /**
+   * Decompiles each set of entries of library within its own JVM, running all JVMs in parallel.
+   *
+   * @param library the jar to take entries from, also used as decompilation library
+   * @param shards the entries to decompile per JVM
+   * @param workDir the directory to store shard jars and outputs in
+   * @return the decompiled jar of each shard
+   * @throws IOException if the shard jars could not be written
+   */
+  List<Path> decompile(File library, List<Set<String>> shards, Path workDir) throws IOException {
+    List<Path> outputs = new ArrayList<>();
+    List<Runnable> runs = new ArrayList<>();
+    for(int i = 0; i < shards.size(); i++) {
+      Set<String> shard = shards.get(i);
+      if(shard.isEmpty()) continue;
+      Path shardJar = workDir.resolve("shard-" + i + ".jar");
+      Path shardOut = Files.createDirectories(workDir.resolve("shard-" + i));
+      RawZipCopier.copy(library.toPath(), shardJar, shard::contains);
+      outputs.add(shardOut.resolve(shardJar.getFileName()));
+      runs.add(() -> getExecOperations().javaexec(spec -> {
+        spec.setExecutable(getJavaLauncher().get().getExecutablePath().getAsFile());
+        spec.setClasspath(getClasspath());
+        spec.getMainClass().set(getMainClass());
+        spec.setMaxHeapSize(shards.size() > 1 ? getShardMaxHeapSize().get() : getMaxHeapSize());
+        spec.getJvmArgumentProviders().addAll(getJvmArgumentProviders());
+        spec.args(getArgs());
+        spec.args("-e=" + library.getAbsolutePath(), shardJar.toAbsolutePath().toString(), shardOut.toAbsolutePath().toString());
+      }));
+    }
+    if(runs.isEmpty()) return outputs;
+    ExecutorService executor = Executors.newFixedThreadPool(runs.size());
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for(Runnable run : runs) futures.add(executor.submit(run));
+      for(Future<?> future : futures) future.get();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while decompiling", e);
+    } catch(ExecutionException e) {
+      if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+      throw new RuntimeException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+    return outputs;
+  }
+
+  /**
+   * Merges jars into one, the first occurrence of each entry name wins.
+   */
+  static void mergeJars(List<Path> jars, Path target) throws IOException {
+    Set<String> written = new HashSet<>();
+    try(OutputStream os = Files.newOutputStream(target); ZipOutputStream zos = new ZipOutputStream(os)) {
+      for(Path jar : jars) {
+        try(ZipFile zip = new ZipFile(jar.toFile())) {
+          for(ZipEntry entry : Collections.list(zip.entries())) {
+            if(!written.add(entry.getName())) continue;
+            zos.putNextEntry(new ZipEntry(entry.getName()));
+            try(InputStream is = zip.getInputStream(entry)) {
+              is.transferTo(zos);
+            }
+            zos.closeEntry();
+          }
+        }
+      }
+    } catch(UncheckedIOException e) {
+      throw e.getCause();
+    }
   }
 }
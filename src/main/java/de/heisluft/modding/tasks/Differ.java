@@ -2,50 +2,140 @@ package de.heisluft.modding.tasks;
 
 import com.github.difflib.DiffUtils;
 import com.github.difflib.UnifiedDiffUtils;
+import de.heisluft.modding.util.Hashing;
+import de.heisluft.modding.util.StateFile;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.tasks.CacheableTask;
 import org.gradle.api.tasks.InputDirectory;
+import org.gradle.api.tasks.Internal;
 import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+@CacheableTask
 public abstract class Differ extends DefaultTask {
 
   @InputDirectory
+  @PathSensitive(PathSensitivity.RELATIVE)
   public abstract DirectoryProperty getBackupSrcDir();
 
   @InputDirectory
+  @PathSensitive(PathSensitivity.RELATIVE)
   public abstract DirectoryProperty getModifiedSrcDir();
 
   @OutputDirectory
   public abstract DirectoryProperty getPatchDir();
 
+  /**
+   * A manifest written by {@link #recordSourceManifest(Path, Path)} when the modified source dir was last populated.
+   * If present, files listed in it are only diffed if their size, modification time or hash differ from the manifest or
+   * their backup no longer matches the recorded hash, other files are compared byte by byte. This is not an input, as
+   * the patches only depend on the contents of both source dirs.
+   */
+  @Internal
+  public abstract RegularFileProperty getSourceManifest();
+
   public Differ() {
     getPatchDir().convention(getProject().getLayout().getBuildDirectory().dir(getName()));
   }
 
+  /**
+   * Records hash, size and modification time of every file within srcDir.
+   *
+   * @param srcDir the directory to record
+   * @param manifest the file to write the manifest to
+   * @throws IOException if srcDir could not be read or the manifest could not be written
+   */
+  public static void recordSourceManifest(Path srcDir, Path manifest) throws IOException {
+    Map<String, String> state = new ConcurrentHashMap<>();
+    try(Stream<Path> files = Files.walk(srcDir)) {
+      files.parallel().filter(Files::isRegularFile).forEach(p -> {
+        try {
+          state.put(srcDir.relativize(p).toString().replace(File.separatorChar, '/'), Hashing.sha512Hex(p) +
+              " " + Files.size(p) + " " + Files.getLastModifiedTime(p).toMillis());
+        } catch(IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch(UncheckedIOException e) {
+      throw e.getCause();
+    }
+    StateFile.write(manifest, state);
+  }
+
   @TaskAction
   public void doStuff() throws IOException {
     Path origSrc = getBackupSrcDir().getAsFile().get().toPath();
     Path modSrc = getModifiedSrcDir().getAsFile().get().toPath();
     Path patches = getPatchDir().getAsFile().get().toPath();
+    Map<String, String> manifest = getSourceManifest().isPresent() ?
+        StateFile.read(getSourceManifest().get().getAsFile().toPath()) : Map.of();
+    Path backupHashesFile = getTemporaryDir().toPath().resolve("backup-hashes.txt");
+    Map<String, String> backupHashes = Files.isRegularFile(backupHashesFile) ? StateFile.read(backupHashesFile) : Map.of();
+    StateFile.write(backupHashesFile, diffAll(origSrc, modSrc, patches, manifest, backupHashes));
+  }
+
+  /**
+   * Writes a patch for every file within origSrc which differs from its counterpart in modSrc and deletes every other
+   * file within patches, e.g. the patches of files which don't differ anymore.
+   *
+   * @param origSrc the directory of the unmodified sources
+   * @param modSrc the directory of the modified sources
+   * @param patches the directory to write patches to
+   * @param manifest the source manifest recorded when modSrc was written, see {@link #recordSourceManifest(Path, Path)}.
+   *                 Files without an entry are compared byte by byte.
+   * @param backupHashes the hashes of files within origSrc returned by the last call, keyed by relative path
+   * @return the hashes of files within origSrc computed or reused by this call, to be passed to the next one
+   * @throws IOException if a file could not be read or written
+   */
+  static Map<String, String> diffAll(Path origSrc, Path modSrc, Path patches, Map<String, String> manifest,
+      Map<String, String> backupHashes) throws IOException {
+    Map<String, String> currentBackupHashes = new ConcurrentHashMap<>();
+    List<String> files;
+    // The manifest is only a hint, files may have been added to or removed from the backup since it was written
     try(Stream<Path> ps = Files.walk(origSrc)) {
-      ps.filter(Files::isRegularFile).forEach(p -> {
+      files = ps.filter(Files::isRegularFile).map(p -> origSrc.relativize(p).toString().replace(File.separatorChar, '/'))
+          .collect(Collectors.toList());
+    }
+    // Patches are named after the file name only, files sharing one are diffed one after another in a fixed order, so
+    // that they don't write the same patch at once. If several of them were modified, the last one's patch is kept.
+    Map<String, List<String>> byPatchName = files.stream().sorted()
+        .collect(Collectors.groupingBy(Differ::patchName, TreeMap::new, Collectors.toList()));
+    Set<String> written = ConcurrentHashMap.newKeySet();
+    try {
+      byPatchName.entrySet().parallelStream().forEach(e -> {
         try {
-          Path rel = origSrc.relativize(p);
-          List<String> origLines = Files.readAllLines(p);
-          List<String> patchLines = UnifiedDiffUtils.generateUnifiedDiff(rel.toString(), "patches/" + rel, origLines,
-              DiffUtils.diff(origLines, Files.readAllLines(modSrc.resolve(rel))),
-              3
-          );
-          if(patchLines.isEmpty()) return;
-          Files.write(patches.resolve(rel.getFileName().toString().replace(".java", ".patch")), patchLines);
+          List<String> patchLines = null;
+          for(String rel : e.getValue()) {
+            Path orig = origSrc.resolve(rel);
+            Path modified = modSrc.resolve(rel);
+            if(isUnmodified(orig, modified, manifest.get(rel), backupHashes.get(rel), currentBackupHashes, rel)) continue;
+            List<String> origLines = Files.readAllLines(orig);
+            List<String> lines = UnifiedDiffUtils.generateUnifiedDiff(rel, "patches/" + rel, origLines,
+                DiffUtils.diff(origLines, Files.readAllLines(modified)),
+                3
+            );
+            if(!lines.isEmpty()) patchLines = lines;
+          }
+          if(patchLines == null) return;
+          Files.write(patches.resolve(e.getKey()), patchLines);
+          written.add(e.getKey());
         } catch(IOException ex) {
           throw new UncheckedIOException(ex);
         }
@@ -53,5 +143,40 @@ public abstract class Differ extends DefaultTask {
     } catch(UncheckedIOException e) {
       throw e.getCause();
     }
+    // Patches of files which are unmodified by now or vanished, so that the output only depends on the inputs
+    try(Stream<Path> ps = Files.list(patches)) {
+      for(Path patch : ps.collect(Collectors.toList()))
+        if(!written.contains(patch.getFileName().toString()) && Files.isRegularFile(patch)) Files.delete(patch);
+    }
+    return currentBackupHashes;
+  }
+
+  private static String patchName(String rel) {
+    return rel.substring(rel.lastIndexOf('/') + 1).replace(".java", ".patch");
+  }
+
+  /**
+   * Checks whether modified still equals orig. Files are only hashed if their size or modification time differ from
+   * the ones recorded for them.
+   *
+   * @param recorded the manifest entry of modified, may be null
+   * @param backupHash the entry of orig returned by the last {@link #diffAll} call, may be null
+   * @param backupHashes the map to put the current entry of orig in
+   */
+  private static boolean isUnmodified(Path orig, Path modified, String recorded, String backupHash,
+      Map<String, String> backupHashes, String rel) throws IOException {
+    // Without a record, most files are still never touched, skip reading them line by line
+    if(recorded == null) return Files.mismatch(orig, modified) == -1;
+    if(!Files.isRegularFile(modified)) return false;
+    String[] parts = recorded.split(" ");
+    String stamp = Files.size(orig) + " " + Files.getLastModifiedTime(orig).toMillis();
+    String origHash = backupHash != null && backupHash.startsWith(stamp + " ") ?
+        backupHash.substring(stamp.length() + 1) : Hashing.sha512Hex(orig);
+    backupHashes.put(rel, stamp + " " + origHash);
+    // The backup may have changed since the record was made, e.g. if copySrc was skipped for a non-empty dir
+    if(!parts[0].equals(origHash)) return Files.mismatch(orig, modified) == -1;
+    if(Long.parseLong(parts[1]) == Files.size(modified) && Long.parseLong(parts[2]) == Files.getLastModifiedTime(modified).toMillis())
+      return true;
+    return parts[0].equals(Hashing.sha512Hex(modified));
   }
 }
@@ -1,30 +1,43 @@
 package de.heisluft.modding.tasks;
 
+import de.heisluft.modding.util.GlobMatcher;
+import de.heisluft.modding.util.StateFile;
 import de.heisluft.modding.util.Util;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.CacheableTask;
 import org.gradle.api.tasks.Input;
 import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.Internal;
 import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UncheckedIOException;
-import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
-import java.util.function.Predicate;
+import java.util.Map;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
+@CacheableTask
 public abstract class Extract extends DefaultTask {
 
   private final List<String> includePatterns = new ArrayList<>();
 
   @InputFile
+  @PathSensitive(PathSensitivity.RELATIVE)
   public abstract RegularFileProperty getInput();
 
   @OutputDirectory
@@ -35,31 +48,73 @@ public abstract class Extract extends DefaultTask {
     return includePatterns;
   }
 
+  /**
+   * If set to true, only entries whose CRC or size changed since the last run are extracted and files of entries that
+   * vanished are removed. Unchanged files are left alone, keeping their modification times. Otherwise, or if the output
+   * was replaced since the last run, e.g. when restored from the build cache, the output directory is purged and every
+   * entry is extracted.
+   */
+  @Internal
+  public abstract Property<Boolean> getIncremental();
+
   public Extract() {
     getOutput().convention(getProject().getLayout().getBuildDirectory().dir(getName()));
+    getIncremental().convention(true);
   }
 
   @TaskAction
   public void doStuff() throws IOException {
-    try {
-      Util.deleteContents(getOutput().getAsFile().get());
-    } catch (IOException e) {
-      throw new UncheckedIOException(e);
-    }
-    Path outDir = getOutput().get().getAsFile().toPath();
-    Set<Predicate<Path>> patterns = includePatterns.stream().map(Util::parsePattern).collect(Collectors.toSet());
-    try(FileSystem fs = Util.createFS(getInput().get().getAsFile(), false)) {
-      Files.walk(fs.getPath("/")).filter(path -> Files.isRegularFile(path) && patterns.isEmpty() || patterns.stream().anyMatch(p -> p.test(path))).forEach(path -> {
-        Path resolved = outDir.resolve(path.toString().substring(1));
+    Path outDir = getOutput().get().getAsFile().toPath().toAbsolutePath().normalize();
+    Path stateFile = getTemporaryDir().toPath().resolve("entries.txt");
+    Path stampFile = getTemporaryDir().toPath().resolve("output.stamp");
+    // Without a record of the last run matching the current output, we can't tell which files are stale
+    boolean incremental = getIncremental().get() && Files.isRegularFile(stateFile) && StateFile.matchesStamp(stampFile, outDir);
+    Map<String, String> previous = incremental ? StateFile.read(stateFile) : new HashMap<>();
+    if(!incremental) Util.deleteContents(getOutput().getAsFile().get());
+    GlobMatcher matcher = GlobMatcher.compile(includePatterns);
+    Map<String, String> current = new HashMap<>();
+    try(ZipFile zip = new ZipFile(getInput().get().getAsFile())) {
+      List<ZipEntry> entries = zip.stream()
+          .filter(e -> !e.isDirectory() && (includePatterns.isEmpty() || matcher.matches(e.getName())))
+          .collect(Collectors.toList());
+      for(ZipEntry entry : entries) current.put(entry.getName(), Long.toHexString(entry.getCrc()) + " " + entry.getSize());
+      entries.parallelStream().forEach(entry -> {
         try {
-          Files.createDirectories(resolved.getParent());
-          Files.copy(path, resolved);
+          Path target = resolveEntry(outDir, entry.getName());
+          if(current.get(entry.getName()).equals(previous.get(entry.getName())) && Files.isRegularFile(target)
+              && Files.size(target) == entry.getSize()) return;
+          Files.createDirectories(target.getParent());
+          // Replacing deletes the old file first, so files linked to it by applyCompilerPatches keep their contents
+          try(InputStream is = zip.getInputStream(entry)) {
+            Files.copy(is, target, StandardCopyOption.REPLACE_EXISTING);
+          }
         } catch(IOException e) {
           throw new UncheckedIOException(e);
         }
       });
+      for(String stale : previous.keySet()) {
+        if(current.containsKey(stale)) continue;
+        Path target = resolveEntry(outDir, stale);
+        Files.deleteIfExists(target);
+        for(Path dir = target.getParent(); !dir.equals(outDir) && isEmptyDir(dir); dir = dir.getParent()) Files.delete(dir);
+      }
     } catch(UncheckedIOException ex) {
       throw ex.getCause();
     }
+    StateFile.write(stateFile, current);
+    StateFile.writeStamp(stampFile, outDir);
+  }
+
+  private static Path resolveEntry(Path outDir, String name) throws IOException {
+    Path resolved = outDir.resolve(name).normalize();
+    if(!resolved.startsWith(outDir)) throw new IOException("Entry '" + name + "' would be extracted outside of " + outDir);
+    return resolved;
+  }
+
+  private static boolean isEmptyDir(Path dir) throws IOException {
+    if(!Files.isDirectory(dir)) return false;
+    try(Stream<Path> s = Files.list(dir)) {
+      return !s.findAny().isPresent();
+    }
   }
 }
@@ -0,0 +1,138 @@
+package de.heisluft.modding.tasks;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.Nested;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.jvm.toolchain.JavaLanguageVersion;
+import org.gradle.jvm.toolchain.JavaLauncher;
+import org.gradle.jvm.toolchain.JavaToolchainService;
+import org.gradle.workers.WorkerExecutor;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a chain of jar processing steps within a single task, replacing the separate stripLibraries, restoreMeta,
+ * remapJarFrg and applyAts tasks. DeobfTools steps run within a worker daemon on the Java 8 toolchain, stripping runs
+ * within the task itself. DeobfTools only accepts file paths, so intermediate jars are written to the tasks temporary
+ * dir, each one is deleted as soon as the next step consumed it. The output jar is normalized like the ones of
+ * {@link OutputtingJavaExec}, so the task is cacheable.
+ */
+@CacheableTask
+public abstract class JarPipeline extends DefaultTask {
+  public static final String STRIP = "strip", RESTORE_META = JarPipelineWorkAction.RESTORE_META,
+      REMAP = JarPipelineWorkAction.REMAP, APPLY_ATS = JarPipelineWorkAction.APPLY_ATS;
+
+  @InputFile
+  @PathSensitive(PathSensitivity.RELATIVE)
+  public abstract RegularFileProperty getInput();
+
+  @InputFile
+  @PathSensitive(PathSensitivity.RELATIVE)
+  @Optional
+  public abstract RegularFileProperty getMappings();
+
+  @InputFile
+  @PathSensitive(PathSensitivity.RELATIVE)
+  @Optional
+  public abstract RegularFileProperty getATFile();
+
+  /**
+   * The steps to run, in order. Valid steps are {@link #STRIP}, {@link #RESTORE_META}, {@link #REMAP} and
+   * {@link #APPLY_ATS}.
+   */
+  @Input
+  public abstract ListProperty<String> getStages();
+
+  @Input
+  public abstract ListProperty<String> getIncludedPaths();
+
+  @Classpath
+  public abstract ConfigurableFileCollection getToolClasspath();
+
+  /**
+   * The launcher the worker daemon running DeobfTools is forked with.
+   */
+  @Nested
+  public abstract Property<JavaLauncher> getJavaLauncher();
+
+  @OutputFile
+  public abstract RegularFileProperty getOutput();
+
+  @Inject
+  protected abstract WorkerExecutor getWorkerExecutor();
+
+  public JarPipeline() {
+    getOutput().convention(getProject().getLayout().getBuildDirectory().dir(getName()).map(dir -> dir.file("output.jar")));
+    getJavaLauncher().convention(getProject().getExtensions().getByType(JavaToolchainService.class).launcherFor(v -> v.getLanguageVersion().set(
+        JavaLanguageVersion.of(8))));
+  }
+
+  @TaskAction
+  public void doAction() {
+    List<String> stages = new ArrayList<>(getStages().get());
+    // Applying ATs is optional, every other step is not.
+    if(!getATFile().isPresent() || !getATFile().get().getAsFile().exists()) stages.remove(APPLY_ATS);
+    if(stages.contains(REMAP) && !getMappings().isPresent())
+      throw new GradleException("Cannot remap without mappings, set the mappings property of task " + getName());
+    if(stages.isEmpty()) throw new GradleException("No steps to run for task " + getName());
+    File input = getInput().get().getAsFile(), current = input;
+    List<String> workerStages = new ArrayList<>();
+    try {
+      for(int i = 0; i < stages.size(); i++) {
+        String stage = stages.get(i);
+        boolean last = i == stages.size() - 1;
+        // Consecutive DeobfTools steps are run by a single work item
+        if(!STRIP.equals(stage)) {
+          workerStages.add(stage);
+          if(!last && !STRIP.equals(stages.get(i + 1))) continue;
+        }
+        File next = last ? getOutput().get().getAsFile() : new File(getTemporaryDir(), i + "-" + stage + ".jar");
+        if(STRIP.equals(stage)) Zip2ZipCopy.doExec(current, next, getIncludedPaths().get());
+        else {
+          runInWorker(current, next, workerStages);
+          workerStages.clear();
+        }
+        if(!current.equals(input)) Files.delete(current.toPath());
+        current = next;
+      }
+      OutputtingJavaExec.normalizeOutput(getOutput().get().getAsFile());
+    } catch(IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void runInWorker(File input, File output, List<String> stages) {
+    // Workers with equal fork options and classpath are reused, so DeobfTools stays loaded across builds
+    getWorkerExecutor().processIsolation(spec -> {
+      spec.getClasspath().from(getToolClasspath());
+      spec.getForkOptions().setExecutable(getJavaLauncher().get().getExecutablePath().getAsFile().getAbsolutePath());
+    }).submit(JarPipelineWorkAction.class, params -> {
+      params.getInput().set(input);
+      params.getOutput().set(output);
+      params.getMappings().set(getMappings());
+      params.getATFile().set(getATFile());
+      params.getStages().set(new ArrayList<>(stages));
+      params.getTempDir().set(getTemporaryDir());
+    });
+    getWorkerExecutor().await();
+  }
+}
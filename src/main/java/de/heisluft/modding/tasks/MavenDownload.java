@@ -1,26 +1,26 @@
 package de.heisluft.modding.tasks;
 
+import de.heisluft.modding.repo.ArtifactStore;
 import de.heisluft.modding.util.ArtifactIdentifier;
 import de.heisluft.modding.util.MavenMetaUtil;
+import de.heisluft.modding.util.Util;
 import org.gradle.api.DefaultTask;
+import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.file.RegularFileProperty;
 import org.gradle.api.provider.Property;
 import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Internal;
 import org.gradle.api.tasks.Optional;
 import org.gradle.api.tasks.OutputFile;
 import org.gradle.api.tasks.TaskAction;
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 
 public abstract class MavenDownload extends DefaultTask {
 
@@ -47,54 +47,118 @@ public abstract class MavenDownload extends DefaultTask {
     getOutput().convention(getProject().getLayout().getBuildDirectory().dir(getName()).map(dir -> dir.file("output.jar")));
     getVersion().convention("latest");
     getExtension().convention("jar");
+    File storeDir = Util.getCacheBase(getProject().getGradle()).resolve("maven_store").toFile();
+    getStoreDir().convention(getProject().getLayout().dir(getProject().getProviders().provider(() -> storeDir)));
+    File metadataCacheDir = Util.getCacheBase(getProject().getGradle()).resolve("maven_meta").toFile();
+    getMetadataCacheDir().convention(getProject().getLayout().dir(getProject().getProviders().provider(() -> metadataCacheDir)));
+    getMetadataTtl().convention(Duration.ofHours(24));
+    getRevalidate().convention(false);
+    // The artifact behind a dynamic version may change any time, as may one whose fixed version the repo republishes
+    getOutputs().upToDateWhen(t -> {
+      MavenDownload task = (MavenDownload) t;
+      return !task.getRevalidate().get() && !isDynamic(task.getVersion().get());
+    });
+    getDownloadSegments().convention(1);
   }
 
   @OutputFile
   public abstract RegularFileProperty getOutput();
 
-  public static void manualDownload(String repoUrl, ArtifactIdentifier id, File output) throws IOException {
+  /**
+   * The directory of the artifact store shared among projects. Artifacts are only transferred if the repo reports a
+   * change since they were stored.
+   */
+  @Internal
+  public abstract DirectoryProperty getStoreDir();
+
+  /**
+   * The number of segments large artifacts are downloaded in, in parallel.
+   */
+  @Internal
+  public abstract Property<Integer> getDownloadSegments();
+
+  /**
+   * The directory parsed maven metadata is cached in.
+   */
+  @Internal
+  public abstract DirectoryProperty getMetadataCacheDir();
+
+  /**
+   * Whether to ask the repo for changes on every build even though the version is not dynamic, for artifacts the
+   * repo republishes under the same version. Unchanged artifacts are not transferred again. Defaults to false.
+   */
+  @Internal
+  public abstract Property<Boolean> getRevalidate();
+
+  /**
+   * The time cached maven metadata is reused for without asking the repo again.
+   */
+  @Internal
+  public abstract Property<Duration> getMetadataTtl();
+
+  /**
+   * Checks whether a version may resolve to a different artifact over time.
+   *
+   * @param version the requested version
+   * @return true for {@code latest}, {@code release} and snapshot versions
+   */
+  public static boolean isDynamic(String version) {
+    return "latest".equals(version) || "release".equals(version) || version.endsWith("-SNAPSHOT");
+  }
+
+  /**
+   * Resolves an artifact into the artifact store, without copying it anywhere.
+   *
+   * @param repoUrl the url of the maven repo
+   * @param id the artifact to resolve, its version may be {@code latest} or {@code release}
+   * @param storeDir the directory of the artifact store
+   * @param metaUtil the metadata cache to resolve versions with
+   * @return the location of the artifact within the store
+   * @throws IOException if the artifact could not be resolved
+   */
+  public static Path resolve(String repoUrl, ArtifactIdentifier id, Path storeDir, MavenMetaUtil metaUtil) throws IOException {
+    return resolve(repoUrl, id, storeDir, 1, metaUtil);
+  }
+
+  /**
+   * Resolves an artifact into the artifact store, without copying it anywhere.
+   *
+   * @param repoUrl the url of the maven repo
+   * @param id the artifact to resolve, its version may be {@code latest} or {@code release}
+   * @param storeDir the directory of the artifact store
+   * @param downloadSegments the number of segments to download large artifacts in
+   * @param metaUtil the metadata cache to resolve versions with
+   * @return the location of the artifact within the store
+   * @throws IOException if the artifact could not be resolved
+   */
+  public static Path resolve(String repoUrl, ArtifactIdentifier id, Path storeDir, int downloadSegments, MavenMetaUtil metaUtil) throws IOException {
     String c = id.classifier == null ? "" : "-" + id.classifier;
     String ext = id.extension;
-    doExec(repoUrl, id.groupId, id.artifactId, id.version, c, ext == null ? "jar" : ext, output);
+    return doExec(repoUrl, id.groupId, id.artifactId, id.version, c, ext == null ? "jar" : ext, storeDir, downloadSegments, metaUtil);
   }
 
-  private static void doExec(String repoUrl, String group, String name, String versionRaw, String classifier, String extension, File outputFile) throws IOException {
+  private static Path doExec(String repoUrl, String group, String name, String versionRaw, String classifier, String extension, Path storeDir, int downloadSegments, MavenMetaUtil metaUtil) throws IOException {
+    if(!repoUrl.endsWith("/")) repoUrl += "/";
     String version, expandedVersion;
-    String baseUrl = repoUrl + (repoUrl.endsWith("/") ? "" : "/") + group.replace('.', '/') + "/" + name + "/";
-    try(InputStream is = new URL(baseUrl + "maven-metadata.xml").openStream()) {
-      Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(is);
-      switch (versionRaw) {
-        case "latest":
-        case "release":
-          NodeList query = document.getElementsByTagName(versionRaw);
-          if(query.getLength() == 0) throw new FileNotFoundException("Found no data for version '" + versionRaw + "' of artifact '" + name + "' in maven repo at " + repoUrl);
-          version = query.item(0).getTextContent();
-          break;
-        default: version = versionRaw;
-      }
-      NodeList versionsQuery = document.getElementsByTagName("versions");
-      if(versionsQuery.getLength() == 0) throw new FileNotFoundException("maven-metadata.xml does not list any versions. This is an error on the repo side! Report to maintainers of " + repoUrl);
-      if(!MavenMetaUtil.getVersions(document).contains(version)) throw new FileNotFoundException("Found no data for version '" + version + "' of artifact '" + name + "' in maven repo at " + repoUrl);
-    } catch(SAXException | ParserConfigurationException ex) {
-      throw new RuntimeException(ex);
+    String basePath = group.replace('.', '/') + "/" + name + "/";
+    String baseUrl = repoUrl + basePath;
+    MavenMetaUtil.Metadata metadata = metaUtil.fetch(baseUrl + "maven-metadata.xml");
+    switch (versionRaw) {
+      case "latest":
+      case "release":
+        version = "latest".equals(versionRaw) ? metadata.latest : metadata.release;
+        if(version == null) throw new FileNotFoundException("Found no data for version '" + versionRaw + "' of artifact '" + name + "' in maven repo at " + repoUrl);
+        break;
+      default: version = versionRaw;
     }
+    if(metadata.versions == null) throw new FileNotFoundException("maven-metadata.xml does not list any versions. This is an error on the repo side! Report to maintainers of " + repoUrl);
+    if(!metadata.versions.contains(version)) throw new FileNotFoundException("Found no data for version '" + version + "' of artifact '" + name + "' in maven repo at " + repoUrl);
     if(version.endsWith("-SNAPSHOT")) {
-      try(InputStream is = new URL(baseUrl + version + "/maven-metadata.xml").openStream()) {
-        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(is);
-        NodeList query = document.getElementsByTagName("timestamp");
-        NodeList query2 = document.getElementsByTagName("buildNumber");
-        if(query.getLength() != 1 || query2.getLength() != 1) throw new FileNotFoundException("snapshot maven-metadata.xml is malformed");
-        expandedVersion = version.replace("SNAPSHOT", query.item(0).getTextContent() + "-" + query2.item(0).getTextContent());
-      } catch(SAXException | ParserConfigurationException ex) {
-        throw new RuntimeException(ex);
-      }
+      MavenMetaUtil.Metadata snapshot = metaUtil.fetch(baseUrl + version + "/maven-metadata.xml");
+      if(snapshot.snapshotTimestamp == null || snapshot.snapshotBuildNumber == null) throw new FileNotFoundException("snapshot maven-metadata.xml is malformed");
+      expandedVersion = version.replace("SNAPSHOT", snapshot.snapshotTimestamp + "-" + snapshot.snapshotBuildNumber);
     } else expandedVersion = version;
-    URL url = new URL(baseUrl + version + "/" + name  + "-" + expandedVersion + classifier + "." + extension);
-    try(FileOutputStream os = new FileOutputStream(outputFile); InputStream is = url.openConnection().getInputStream()) {
-      byte[] buf = new byte[1024];
-      int read;
-      while((read = is.read(buf)) != -1) os.write(buf, 0, read);
-    }
+    return new ArtifactStore(storeDir, downloadSegments).fetch(repoUrl, basePath + version + "/" + name  + "-" + expandedVersion + classifier + "." + extension);
   }
 
   @TaskAction
@@ -105,6 +169,8 @@ public abstract class MavenDownload extends DefaultTask {
     String classifier = getClassifier().isPresent() ? "-" + getClassifier().get() : "";
     String extension = getExtension().get();
     String reqVersion = getVersion().get();
-    doExec(repoUrl, group, name, reqVersion, classifier, extension, getOutput().get().getAsFile());
+    MavenMetaUtil metaUtil = new MavenMetaUtil(getMetadataCacheDir().get().getAsFile().toPath(), getMetadataTtl().get());
+    Path stored = doExec(repoUrl, group, name, reqVersion, classifier, extension, getStoreDir().get().getAsFile().toPath(), getDownloadSegments().get(), metaUtil);
+    Files.copy(stored, getOutput().get().getAsFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
   }
 }
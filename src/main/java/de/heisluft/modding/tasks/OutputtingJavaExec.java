@@ -1,29 +1,328 @@
 package de.heisluft.modding.tasks;
 
+import de.heisluft.modding.util.GcLogArguments;
+import de.heisluft.modding.util.Hashing;
+import de.heisluft.modding.util.RawZipCopier;
+import de.heisluft.modding.util.Util;
+import org.gradle.api.Action;
+import org.gradle.api.Task;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Optional;
 import org.gradle.api.tasks.JavaExec;
 import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
+import org.gradle.jvm.toolchain.JavaInstallationMetadata;
 import org.gradle.jvm.toolchain.JavaLanguageVersion;
 import org.gradle.jvm.toolchain.JavaToolchainService;
+import org.gradle.process.CommandLineArgumentProvider;
+import org.gradle.workers.WorkerExecutor;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public abstract class OutputtingJavaExec extends JavaExec {
+  /** Set by {@link #exec()} if the outputs still need to be post-processed by {@link #finishExec()} */
+  private transient boolean pendingFinish;
+  private transient Path pendingCacheEntry;
 
   public OutputtingJavaExec() {
     getJavaLauncher().set(getProject().getExtensions().getByType(JavaToolchainService.class).launcherFor(v -> v.getLanguageVersion().set(
         JavaLanguageVersion.of(8))));
+    getUseWorkerDaemon().convention(false);
+    File cacheDir = Util.getCacheBase(getProject().getGradle()).resolve("artifacts").toFile();
+    getArtifactCacheDir().convention(getProject().getLayout().dir(getProject().getProviders().provider(() -> cacheDir)));
+    getUseArtifactCache().convention(false);
+    // Runs after the action above and the work it submitted completed, see finishExec
+    doLast(finishExec());
   }
 
   @OutputFile
   public abstract RegularFileProperty getOutput();
 
+  /**
+   * If set to true, the main class is run within a reusable Gradle worker daemon instead of a freshly forked JVM. The
+   * daemon is forked with the java launcher, jvm arguments, system properties and environment of this task, so tasks
+   * only share a daemon if all of them are equal. Calls to System.exit within the main class end the work item instead
+   * of the daemon. While the work item runs, Gradle may run other tasks of the same project.
+   */
+  @Internal
+  public abstract Property<Boolean> getUseWorkerDaemon();
+
+  /**
+   * If set, the output is copied to this location after execution, unless a file already exists there.
+   */
+  @Internal
+  public abstract RegularFileProperty getPublishTo();
+
+  /**
+   * If set, the SHA-512 checksum of a newly published output is written to this location.
+   */
+  @Internal
+  public abstract RegularFileProperty getPublishChecksumTo();
+
+  /**
+   * Files passed to the main class by argument providers. Declaring them makes them inputs of this task and lets the
+   * artifact cache key refer to their contents instead of their location.
+   */
+  @InputFiles
+  @PathSensitive(PathSensitivity.RELATIVE)
+  @Optional
+  public abstract ConfigurableFileCollection getArgumentFiles();
+
+  /**
+   * If set to true, the outputs of this task are looked up in {@link #getArtifactCacheDir()} before running the main
+   * class, and stored there afterwards.
+   */
+  @Internal
+  public abstract Property<Boolean> getUseArtifactCache();
+
+  /**
+   * The directory holding cached task outputs. Entries are keyed by the task type, main class, the vendor and version
+   * of the java launcher, the contents of all input files including the classpath, jvm arguments including those of
+   * argument providers other than {@link GcLogArguments}, system properties and the arguments. Within arguments, input
+   * and output locations are replaced by content hashes and output positions respectively, also where they are only
+   * part of an argument. Tasks of different projects with equal inputs thus share entries. Input hashes are recorded within this directory too and reused while size and
+   * modification time of an input stay the same.
+   */
+  @Internal
+  public abstract DirectoryProperty getArtifactCacheDir();
+
+  @Inject
+  protected abstract WorkerExecutor getWorkerExecutor();
+
   public void setOutputFilename(String filename) {
     getOutput().set(getProject().getLayout().getBuildDirectory().file(getName() + "/" + filename));
   }
 
+  /**
+   * Copies output to target if output exists and target does not, writing the checksum of the copy to checksumFile
+   *
+   * @param output the output file to publish
+   * @param target the location to publish to
+   * @param checksumFile the location to write the SHA-512 checksum to, may be null
+   * @throws IOException if the file could not be copied or the checksum could not be written
+   */
+  private static void publish(File output, File target, File checksumFile) throws IOException {
+    if(target.isFile() || !output.exists()) return;
+    Files.copy(output.toPath(), target.toPath());
+    if(checksumFile != null) Files.write(checksumFile.toPath(), Hashing.sha512(target.toPath()));
+  }
+
+  /**
+   * Normalizes output if it is a jar, so that its bytes only depend on its contents. The jars DeobfTools writes carry
+   * the time they were written, which would make equal outputs differ between machines and builds.
+   *
+   * @param output the output to normalize
+   * @throws IOException if the jar could not be rewritten
+   */
+  static void normalizeOutput(File output) throws IOException {
+    if(!output.getName().endsWith(".jar") || !output.isFile()) return;
+    Path tmp = Files.createTempFile(output.toPath().getParent(), output.getName(), ".tmp");
+    try {
+      RawZipCopier.normalize(output.toPath(), tmp);
+      Files.move(tmp, output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Copies all outputs from a cache entry, deleting outputs the entry does not contain.
+   *
+   * @return false if there is no such entry
+   */
+  private static boolean restoreFromCache(Path entry, List<File> outputs) throws IOException {
+    if(!Files.isDirectory(entry)) return false;
+    for(int i = 0; i < outputs.size(); i++) {
+      File output = outputs.get(i);
+      Path cached = entry.resolve(entryName(i, output));
+      if(Files.isRegularFile(cached)) {
+        Files.createDirectories(output.toPath().getParent());
+        Files.copy(cached, output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      } else Files.deleteIfExists(output.toPath());
+    }
+    return true;
+  }
+
+  /**
+   * Stores all existing outputs in a new cache entry. The entry is moved into place as a whole, so concurrent builds
+   * either see a complete entry or none.
+   *
+   * @param entry the entry to create
+   * @param outputs the outputs to store
+   * @throws IOException if the entry could not be written
+   */
+  private static void storeInCache(Path entry, List<File> outputs) throws IOException {
+    if(Files.isDirectory(entry)) return;
+    Files.createDirectories(entry.getParent());
+    Path tmp = Files.createTempDirectory(entry.getParent(), entry.getFileName().toString());
+    try {
+      for(int i = 0; i < outputs.size(); i++)
+        if(outputs.get(i).isFile()) Files.copy(outputs.get(i).toPath(), tmp.resolve(entryName(i, outputs.get(i))));
+      Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE);
+    } catch(FileAlreadyExistsException e) {
+      // Another build stored the same entry in the meantime
+    } catch(IOException e) {
+      if(!Files.isDirectory(entry)) throw e;
+    } finally {
+      if(Files.isDirectory(tmp)) Util.deleteContents(tmp.toFile());
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Names cached outputs by their position, as outputs in different directories may share a file name.
+   */
+  private static String entryName(int index, File output) {
+    return index + "-" + output.getName();
+  }
+
+  private Path artifactCacheEntry(List<String> args, List<File> outputs) throws IOException {
+    Path cacheDir = getArtifactCacheDir().get().getAsFile().toPath();
+    Path hashRecords = cacheDir.resolve("hashes");
+    Map<String, String> inputHashes = new HashMap<>();
+    for(File input : getInputs().getFiles().getFiles())
+      inputHashes.put(input.getAbsolutePath(), hash(input.toPath(), hashRecords));
+    StringBuilder key = new StringBuilder(getClass().getName()).append('\n').append(getMainClass().get());
+    JavaInstallationMetadata java = getJavaLauncher().get().getMetadata();
+    key.append("\njava ").append(java.getVendor()).append(' ').append(java.getJavaRuntimeVersion());
+    for(String hash : new TreeSet<>(inputHashes.values())) key.append('\n').append(hash);
+    // Locations within arguments are replaced longest first, so that no location is replaced within a longer one
+    Map<String, String> locations = new TreeMap<>(Comparator.comparingInt(String::length).reversed().thenComparing(Comparator.naturalOrder()));
+    inputHashes.forEach((path, hash) -> locations.put(path, "<input " + hash + ">"));
+    for(int i = 0; i < outputs.size(); i++) locations.put(outputs.get(i).getAbsolutePath(), "<output " + i + ">");
+    key.append("\njvmArgs");
+    for(String arg : getJvmArgs()) key.append('\n').append(keyOf(arg, locations));
+    // GC logging does not change the outputs, the arguments of every other provider might
+    for(CommandLineArgumentProvider provider : getJvmArgumentProviders())
+      if(!(provider instanceof GcLogArguments)) for(String arg : provider.asArguments()) key.append('\n').append(keyOf(arg, locations));
+    key.append("\nsystemProperties");
+    for(Map.Entry<String, Object> prop : new TreeMap<>(getSystemProperties()).entrySet())
+      key.append('\n').append(prop.getKey()).append('=').append(keyOf(String.valueOf(prop.getValue()), locations));
+    key.append("\nargs");
+    for(String arg : args) key.append('\n').append(keyOf(arg, locations));
+    String hash = Hashing.sha512Hex(key.toString());
+    return cacheDir.resolve(hash.substring(0, 2)).resolve(hash);
+  }
+
+  /**
+   * Replaces the input and output locations an argument consists of or contains, e.g. {@code --out=/a/b.jar}, by
+   * their placeholders.
+   */
+  private static String keyOf(String arg, Map<String, String> locations) {
+    String bare = locations.get(new File(arg).getAbsolutePath());
+    if(bare != null) return bare;
+    for(Map.Entry<String, String> location : locations.entrySet())
+      if(arg.contains(location.getKey())) arg = arg.replace(location.getKey(), location.getValue());
+    return arg;
+  }
+
+
+  /**
+   * Hashes a file or the contents of a directory. File hashes are recorded within recordDir, so unchanged inputs like the
+   * minecraft and DeobfTools jars are not read again on every execution.
+   */
+  private static String hash(Path path, Path recordDir) throws IOException {
+    if(Files.isRegularFile(path)) return Hashing.recordedSha512Hex(path, recordDir);
+    if(!Files.isDirectory(path)) return "missing";
+    StringBuilder builder = new StringBuilder();
+    try(Stream<Path> files = Files.walk(path)) {
+      for(Path file : files.filter(Files::isRegularFile).sorted().collect(Collectors.toList()))
+        builder.append(path.relativize(file)).append(' ').append(Hashing.recordedSha512Hex(file, recordDir)).append('\n');
+    }
+    return Hashing.sha512Hex(builder.toString());
+  }
+
+  /**
+   * Creates the action post-processing the outputs once the main class completed. Gradle only waits for submitted work
+   * between task actions, releasing the project lock meanwhile, so work submitted by {@link #exec()} can run alongside
+   * other tasks of the same project, which waiting within exec would prevent.
+   */
+  private static Action<Task> finishExec() {
+    // This cant be a lambda because Gradle will shit itself otherwise
+    //noinspection Convert2Lambda
+    return new Action<>() {
+      @Override
+      public void execute(@Nonnull Task t) {
+        ((OutputtingJavaExec) t).finish();
+      }
+    };
+  }
+
+  private void finish() {
+    if(!pendingFinish) return;
+    pendingFinish = false;
+    try {
+      normalizeOutput(getOutput().get().getAsFile());
+      if(pendingCacheEntry != null) storeInCache(pendingCacheEntry, new ArrayList<>(getOutputs().getFiles().getFiles()));
+      publish();
+    } catch(IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
   @TaskAction
   @Override
   public void exec() {
-    super.exec();
+    pendingFinish = false;
+    List<String> args = new ArrayList<>(getArgs());
+    for(CommandLineArgumentProvider provider : getArgumentProviders()) provider.asArguments().forEach(args::add);
+    List<File> outputs = new ArrayList<>(getOutputs().getFiles().getFiles());
+    Path cacheEntry = null;
+    try {
+      if(getUseArtifactCache().get()) {
+        cacheEntry = artifactCacheEntry(args, outputs);
+        if(restoreFromCache(cacheEntry, outputs)) {
+          getLogger().info("Reusing outputs of {} from {}", getPath(), cacheEntry);
+          publish();
+          return;
+        }
+      }
+      if(getUseWorkerDaemon().get()) submitToWorker(args);
+      else super.exec();
+      pendingCacheEntry = cacheEntry;
+      pendingFinish = true;
+    } catch(IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Submits the main class to a worker daemon. Post-processing the output needs the plugin classes, which the Java 8
+   * worker can't load, so it happens within the task once the work completed.
+   */
+  private void submitToWorker(List<String> args) {
+    // Workers with equal fork options and classpath are reused, so DeobfTools stays loaded across tasks
+    getWorkerExecutor().processIsolation(spec -> {
+      spec.getClasspath().from(getClasspath());
+      copyTo(spec.getForkOptions());
+      spec.getForkOptions().setExecutable(getJavaLauncher().get().getExecutablePath().getAsFile().getAbsolutePath());
+    }).submit(MainClassWorkAction.class, params -> {
+      params.getMainClass().set(getMainClass());
+      params.getArgs().set(args);
+    });
+  }
+
+  private void publish() throws IOException {
+    if(!getPublishTo().isPresent()) return;
+    publish(getOutput().get().getAsFile(), getPublishTo().get().getAsFile(),
+        getPublishChecksumTo().isPresent() ? getPublishChecksumTo().get().getAsFile() : null);
   }
 }
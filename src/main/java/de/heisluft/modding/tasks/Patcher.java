@@ -2,84 +2,180 @@ package de.heisluft.modding.tasks;
 
 import com.github.difflib.DiffUtils;
 import com.github.difflib.UnifiedDiffUtils;
-import com.github.difflib.patch.Patch;
 import com.github.difflib.patch.PatchFailedException;
+import de.heisluft.modding.util.Hashing;
+import de.heisluft.modding.util.StateFile;
+import de.heisluft.modding.util.Util;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.CacheableTask;
 import org.gradle.api.tasks.InputDirectory;
+import org.gradle.api.tasks.Internal;
 import org.gradle.api.tasks.Optional;
 import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
 import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.stream.Collector;
-import java.util.stream.StreamSupport;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+@CacheableTask
 public abstract class Patcher extends DefaultTask {
 
   @InputDirectory
+  @PathSensitive(PathSensitivity.RELATIVE)
   public abstract DirectoryProperty getInput();
 
   @InputDirectory
+  @PathSensitive(PathSensitivity.RELATIVE)
   @Optional
   public abstract DirectoryProperty getPatchDir();
 
   @OutputDirectory
   public abstract DirectoryProperty getOutput();
 
+  /**
+   * If set to true, only files whose source or patch changed since the last run are rewritten and files whose source
+   * vanished are removed. Otherwise, or if the output was replaced since the last run, e.g. when restored from the
+   * build cache, the output directory is purged and every file is written.
+   */
+  @Internal
+  public abstract Property<Boolean> getIncremental();
+
+  /**
+   * If set to true, files without a patch are hard linked to their source instead of being copied. Falls back to
+   * copying if the file system does not support links between input and output.
+   */
+  @Internal
+  public abstract Property<Boolean> getLinkUnpatched();
+
   public Patcher() {
     getOutput().convention(getProject().getLayout().getBuildDirectory().dir(getName()));
+    getIncremental().convention(true);
+    getLinkUnpatched().convention(true);
   }
 
   @TaskAction
   public void doStuff() throws IOException {
+    Path inDirRoot = getInput().getAsFile().get().toPath();
+    Path outDirRoot = getOutput().getAsFile().get().toPath();
+    Path stateFile = getTemporaryDir().toPath().resolve("fingerprints.txt");
+    Path stampFile = getTemporaryDir().toPath().resolve("output.stamp");
+    // Without a record of the last run matching the current output, we can't tell which files are stale
+    boolean incremental = getIncremental().get() && Files.isRegularFile(stateFile) && StateFile.matchesStamp(stampFile, outDirRoot);
+    Map<String, String> previous = incremental ? StateFile.read(stateFile) : new HashMap<>();
+    if(!incremental) Util.deleteContents(outDirRoot.toFile());
+    // The file tree leaves out files such as .gitignore or .DS_Store, which are no patches
+    List<Path> patchFiles = getPatchDir().isPresent() ?
+        getPatchDir().getAsFileTree().getFiles().stream().map(File::toPath).collect(Collectors.toList()) : List.of();
+    Map<String, String> current = patchAll(inDirRoot, patchFiles, outDirRoot, previous, getLinkUnpatched().get());
+    for(String stale : previous.keySet()) if(!current.containsKey(stale)) Files.deleteIfExists(outDirRoot.resolve(stale));
+    StateFile.write(stateFile, current);
+    StateFile.writeStamp(stampFile, outDirRoot);
+  }
+
+  /**
+   * Writes every file within inDirRoot to outDirRoot, applying its patch from patchFiles if there is one. Files whose
+   * fingerprint matches the one recorded in previous and which still exist in outDirRoot are skipped.
+   *
+   * @param inDirRoot the directory to read sources from
+   * @param patchFiles the patches to apply
+   * @param outDirRoot the directory to write to
+   * @param previous the fingerprints of the last run, keyed by relative path
+   * @param linkUnpatched whether unpatched files should be hard linked instead of copied, if possible
+   * @return the fingerprints of this run, keyed by relative path
+   * @throws IOException if a file could not be read or written, or a patch targets a missing file
+   */
+  static Map<String, String> patchAll(Path inDirRoot, Collection<Path> patchFiles, Path outDirRoot, Map<String, String> previous, boolean linkUnpatched) throws IOException {
+    Map<String, String> current = new ConcurrentHashMap<>();
+    AtomicBoolean link = new AtomicBoolean(linkUnpatched);
     try {
-      Map<String, Patch<String>> patches = getPatchDir().isPresent() ? StreamSupport.stream(
-          getPatchDir().getAsFileTree().spliterator(), false).map(f -> {
+      Map<String, PatchFile> patches = patchFiles.parallelStream().map(f -> {
         try {
-          return Files.readAllLines(f.toPath());
+          return new PatchFile(Files.readAllBytes(f));
         } catch(IOException e) {
           throw new UncheckedIOException(e);
         }
-      }).collect(Collector.of(HashMap::new,
-          (hashMap, strings) -> hashMap.put(extractPatchedPath(strings.get(0)), UnifiedDiffUtils.parseUnifiedDiff(strings)),
-          (hashMap, hashMap2) -> {
-            hashMap.putAll(hashMap2);
-            return hashMap;
-          })
-      ) : new HashMap<>();
-      Path inDirRoot = getInput().getAsFile().get().toPath();
-      Path outDirRoot = getOutput().getAsFile().get().toPath();
-      Files.walk(inDirRoot).filter(Files::isRegularFile).forEach(p -> {
+      }).collect(Collectors.toMap(p -> p.target, p -> p, (a, b) -> b));
+      List<Path> sources;
+      try(Stream<Path> s = Files.walk(inDirRoot)) {
+        sources = s.filter(Files::isRegularFile).collect(Collectors.toList());
+      }
+      // Parallel streams run on the common fork-join pool
+      sources.parallelStream().forEach(p -> {
         try {
-          Path outPath = outDirRoot.resolve(inDirRoot.relativize(p));
+          String rel = inDirRoot.relativize(p).toString().replace(File.separatorChar, '/');
+          byte[] source = Files.readAllBytes(p);
+          PatchFile patch = patches.get(rel);
+          String fingerprint = Hashing.sha512Hex(source) + (patch == null ? "" : " " + patch.hash);
+          current.put(rel, fingerprint);
+          Path outPath = outDirRoot.resolve(rel);
+          if(fingerprint.equals(previous.get(rel)) && Files.isRegularFile(outPath)) return;
           Files.createDirectories(outPath.getParent());
-          Files.copy(p, outPath);
-        } catch(IOException e) {
-          throw new UncheckedIOException(e);
-        }
-      });
-      patches.forEach((s, stringPatch) -> {
-        try {
-          Files.write(outDirRoot.resolve(s), DiffUtils.patch(Files.readAllLines(inDirRoot.resolve(s)), stringPatch));
+          // The old output may be linked to a source file, so writing to it would change the source as well
+          Files.deleteIfExists(outPath);
+          if(patch != null) Files.write(outPath, DiffUtils.patch(toLines(source), UnifiedDiffUtils.parseUnifiedDiff(patch.lines)));
+          else if(!link.get() || !tryLink(outPath, p)) {
+            link.set(false);
+            Files.write(outPath, source);
+          }
         } catch(IOException e) {
           throw new UncheckedIOException(e);
         } catch(PatchFailedException e) {
-          throw new RuntimeException(e);
+          throw new RuntimeException("Could not patch " + p, e);
         }
       });
+      for(String target : patches.keySet())
+        if(!current.containsKey(target)) throw new IOException("Patch target " + target + " does not exist in " + inDirRoot);
     } catch(UncheckedIOException ex) {
       throw ex.getCause();
     }
+    return current;
+  }
+
+  private static boolean tryLink(Path link, Path target) {
+    try {
+      Files.createLink(link, target);
+      return true;
+    } catch(IOException | UnsupportedOperationException e) {
+      return false;
+    }
+  }
+
+  private static List<String> toLines(byte[] bytes) {
+    return new BufferedReader(new StringReader(new String(bytes, StandardCharsets.UTF_8))).lines().collect(Collectors.toList());
   }
 
   private static String extractPatchedPath(String line) {
     int indexOfTab = line.indexOf('\t');
     return line.substring(4, indexOfTab == -1 ? line.length() : indexOfTab).replace("src/main/java/", "");
   }
+
+  private static final class PatchFile {
+    private final String target;
+    private final String hash;
+    private final List<String> lines;
+
+    private PatchFile(byte[] contents) {
+      lines = toLines(contents);
+      target = extractPatchedPath(lines.get(0));
+      hash = Hashing.sha512Hex(contents);
+    }
+  }
 }
@@ -0,0 +1,162 @@
+package de.heisluft.modding.tasks;
+
+import de.heisluft.modding.services.PipelineMetrics;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Summarizes the most recent build recorded by {@link PipelineMetrics}. Lists every stage with its wall time and what it
+ * read and wrote, marks the stages on the critical path and flags stages which were slower than the median of their
+ * previous executions by more than a threshold.
+ */
+public abstract class PipelineReport extends DefaultTask {
+
+  /**
+   * The history file written by {@link PipelineMetrics}.
+   */
+  @Internal
+  public abstract RegularFileProperty getHistoryFile();
+
+  /**
+   * How much slower than its baseline a stage has to be to be flagged, in percent.
+   */
+  @Input
+  public abstract Property<Integer> getRegressionThreshold();
+
+  /**
+   * The number of previous executions of a stage its baseline is computed from.
+   */
+  @Input
+  public abstract Property<Integer> getBaselineRuns();
+
+  /**
+   * Whether the build should fail if a stage was flagged.
+   */
+  @Input
+  public abstract Property<Boolean> getFailOnRegression();
+
+  @OutputFile
+  public abstract RegularFileProperty getReportFile();
+
+  public PipelineReport() {
+    getRegressionThreshold().convention(20);
+    getBaselineRuns().convention(5);
+    getFailOnRegression().convention(false);
+    getReportFile().convention(getProject().getLayout().getBuildDirectory().file("pipeline-metrics/report.txt"));
+    // The history changes with every build
+    getOutputs().upToDateWhen(t -> false);
+  }
+
+  @TaskAction
+  public void report() throws IOException {
+    List<PipelineMetrics.Run> history = PipelineMetrics.readHistory(getHistoryFile().get().getAsFile().toPath());
+    Path reportFile = getReportFile().get().getAsFile().toPath();
+    Files.createDirectories(reportFile.getParent());
+    if(history.isEmpty()) {
+      String msg = "No pipeline runs were recorded yet";
+      Files.write(reportFile, (msg + "\n").getBytes(StandardCharsets.UTF_8));
+      getLogger().lifecycle(msg);
+      return;
+    }
+    long lastBuild = history.get(history.size() - 1).buildId;
+    List<PipelineMetrics.Run> current = history.stream().filter(r -> r.buildId == lastBuild)
+        .sorted(Comparator.comparingLong(r -> r.startTime)).collect(Collectors.toList());
+    List<PipelineMetrics.Run> criticalPath = criticalPath(current);
+
+    int threshold = getRegressionThreshold().get();
+    int baselineRuns = getBaselineRuns().get();
+    List<String> regressions = new ArrayList<>();
+    StringBuilder report = new StringBuilder();
+    report.append(String.format("%-28s %-10s %9s %9s %9s %9s %9s %9s %9s%n", "Stage", "Outcome", "Wall",
+        "Baseline", "Read", "Written", "In", "Out", "Heap"));
+    for(PipelineMetrics.Run run : current) {
+      long baseline = baseline(history, run, baselineRuns);
+      boolean regressed = "executed".equals(run.outcome) && baseline > 0 && run.wallTime() * 100 > baseline * (100L + threshold);
+      if(regressed) regressions.add(String.format("%s took %s, %d%% more than its baseline of %s", run.task,
+          formatMillis(run.wallTime()), (run.wallTime() - baseline) * 100 / baseline, formatMillis(baseline)));
+      PipelineMetrics.Sample s = run.sample;
+      report.append(String.format("%-28s %-10s %9s %9s %9s %9s %9s %9s %9s%s%n",
+          (criticalPath.contains(run) ? "* " : "  ") + run.task, run.outcome, formatMillis(run.wallTime()),
+          baseline > 0 ? formatMillis(baseline) : "-",
+          s == null ? "-" : formatBytes(s.bytesRead), s == null ? "-" : formatBytes(s.bytesWritten),
+          s == null ? "-" : s.entriesRead, s == null ? "-" : s.entriesWritten,
+          s == null || s.peakHeap < 0 ? "-" : formatBytes(s.peakHeap), regressed ? "  SLOWER" : ""));
+    }
+    long criticalTime = criticalPath.stream().mapToLong(PipelineMetrics.Run::wallTime).sum();
+    report.append(String.format("%nCritical path (marked with *): %s, %s%n",
+        criticalPath.stream().map(r -> r.task).collect(Collectors.joining(" -> ")), formatMillis(criticalTime)));
+    for(String regression : regressions) report.append("Regression: ").append(regression).append('\n');
+
+    Files.write(reportFile, report.toString().getBytes(StandardCharsets.UTF_8));
+    getLogger().lifecycle(report.toString());
+    if(getFailOnRegression().get() && !regressions.isEmpty())
+      throw new GradleException(regressions.size() + " pipeline stage(s) regressed by more than " + threshold + "%, see " + reportFile);
+  }
+
+  /**
+   * Computes the median wall time of the previous executions of the stage of a run, ignoring runs that were up-to-date
+   * or restored from cache.
+   *
+   * @return the baseline in millis, or -1 if the stage was never executed before
+   */
+  private static long baseline(List<PipelineMetrics.Run> history, PipelineMetrics.Run run, int runs) {
+    List<Long> previous = history.stream()
+        .filter(r -> r.buildId < run.buildId && r.task.equals(run.task) && "executed".equals(r.outcome))
+        .map(PipelineMetrics.Run::wallTime).collect(Collectors.toList());
+    if(previous.isEmpty()) return -1;
+    List<Long> window = new ArrayList<>(previous.subList(Math.max(0, previous.size() - runs), previous.size()));
+    Collections.sort(window);
+    int mid = window.size() / 2;
+    return window.size() % 2 == 1 ? window.get(mid) : (window.get(mid - 1) + window.get(mid)) / 2;
+  }
+
+  /**
+   * Walks back from the stage that finished last, always picking the stage that finished last before the current one
+   * started. The dependency graph itself is not recorded, so a stage waiting on another one is inferred from timing.
+   */
+  private static List<PipelineMetrics.Run> criticalPath(List<PipelineMetrics.Run> runs) {
+    // Task completion and start of a dependent task are not recorded at exactly the same instant
+    final long tolerance = 50;
+    Map<String, PipelineMetrics.Run> byTask = new LinkedHashMap<>();
+    for(PipelineMetrics.Run run : runs) byTask.put(run.task, run);
+    List<PipelineMetrics.Run> path = new ArrayList<>();
+    PipelineMetrics.Run current = byTask.values().stream().max(Comparator.comparingLong(r -> r.endTime)).orElse(null);
+    while(current != null) {
+      path.add(current);
+      PipelineMetrics.Run c = current;
+      current = byTask.values().stream().filter(r -> r != c && !path.contains(r) && r.endTime <= c.startTime + tolerance)
+          .max(Comparator.comparingLong(r -> r.endTime)).orElse(null);
+    }
+    Collections.reverse(path);
+    return path;
+  }
+
+  private static String formatMillis(long millis) {
+    return millis < 1000 ? millis + "ms" : String.format("%.1fs", millis / 1000d);
+  }
+
+  private static String formatBytes(long bytes) {
+    if(bytes < 1024) return bytes + "B";
+    if(bytes < 1024 * 1024) return String.format("%.1fK", bytes / 1024d);
+    if(bytes < 1024L * 1024 * 1024) return String.format("%.1fM", bytes / (1024d * 1024));
+    return String.format("%.1fG", bytes / (1024d * 1024 * 1024));
+  }
+}
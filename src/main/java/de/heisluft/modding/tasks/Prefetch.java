@@ -0,0 +1,178 @@
+package de.heisluft.modding.tasks;
+
+import de.heisluft.modding.repo.MCRepo;
+import de.heisluft.modding.services.DeobfToolsService;
+import de.heisluft.modding.util.ArtifactIdentifier;
+import de.heisluft.modding.util.MavenMetaUtil;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads everything the pipeline needs at once, so that a cold build waits for the slowest download instead of the
+ * sum of all of them. Maven artifacts end up in the artifact store, the minecraft jar within the {@link MCRepo} cache,
+ * from where the pipeline tasks pick them up. Where everything was resolved to is written to {@link #getResolvedFile()},
+ * so the task is up to date as long as the requested artifacts stay the same.
+ */
+public abstract class Prefetch extends DefaultTask {
+
+  /**
+   * The repo to fetch maven artifacts from.
+   */
+  @Input
+  public abstract Property<String> getRepoUrl();
+
+  /**
+   * The maven artifacts to fetch, in {@code group:name:version[:classifier][@extension]} notation.
+   */
+  @Input
+  public abstract ListProperty<String> getMavenArtifacts();
+
+  /**
+   * The directory of the artifact store to fetch maven artifacts into.
+   */
+  @Internal
+  public abstract DirectoryProperty getStoreDir();
+
+  /**
+   * The minecraft version to fetch the jar of.
+   */
+  @Input
+  @Optional
+  public abstract Property<String> getMinecraftVersion();
+
+  /**
+   * The directory of the {@link MCRepo} cache to fetch the minecraft jar into.
+   */
+  @Internal
+  public abstract DirectoryProperty getMinecraftRepoDir();
+
+  /**
+   * The directory parsed maven metadata is cached in.
+   */
+  @Internal
+  public abstract DirectoryProperty getMetadataCacheDir();
+
+  /**
+   * The time cached maven metadata is reused for without asking the repo again.
+   */
+  @Internal
+  public abstract Property<Duration> getMetadataTtl();
+
+  @Internal
+  @Optional
+  public abstract Property<DeobfToolsService> getDeobfToolsService();
+
+  /**
+   * Dependency configurations to resolve while the other downloads are running. Not an input, Gradle would otherwise
+   * resolve them before the task action even starts. Changes to them don't make this task out of date, the tasks
+   * consuming them resolve them anyway.
+   */
+  @Internal
+  public abstract ConfigurableFileCollection getDependencies();
+
+  /**
+   * The maximum number of downloads to run concurrently, not counting dependency resolution.
+   */
+  @Internal
+  public abstract Property<Integer> getMaxParallelDownloads();
+
+  /**
+   * The number of segments large artifacts are downloaded in, in parallel.
+   */
+  @Internal
+  public abstract Property<Integer> getDownloadSegments();
+
+  /**
+   * Lists the location every artifact was resolved to.
+   */
+  @OutputFile
+  public abstract RegularFileProperty getResolvedFile();
+
+  public Prefetch() {
+    getMaxParallelDownloads().convention(8);
+    getDownloadSegments().convention(1);
+    getMetadataTtl().convention(Duration.ofHours(24));
+    getResolvedFile().convention(getProject().getLayout().getBuildDirectory().file(getName() + "/resolved.txt"));
+  }
+
+  /**
+   * Parses {@code group:name:version[:classifier][@extension]} notation.
+   */
+  static ArtifactIdentifier parseNotation(String notation) {
+    int at = notation.indexOf('@');
+    String extension = at < 0 ? null : notation.substring(at + 1);
+    String[] parts = (at < 0 ? notation : notation.substring(0, at)).split(":");
+    if(parts.length < 3 || parts.length > 4) throw new IllegalArgumentException("Invalid artifact notation '" + notation + "'");
+    return new ArtifactIdentifier(parts[0], parts[1], parts[2], parts.length == 4 ? parts[3] : null, extension);
+  }
+
+  @TaskAction
+  public void prefetch() throws IOException {
+    Map<String, Callable<?>> downloads = new LinkedHashMap<>();
+    String repoUrl = getRepoUrl().get();
+    Path storeDir = getStoreDir().get().getAsFile().toPath();
+    int segments = getDownloadSegments().get();
+    MavenMetaUtil metaUtil = new MavenMetaUtil(getMetadataCacheDir().get().getAsFile().toPath(), getMetadataTtl().get());
+    for(String notation : getMavenArtifacts().get()) {
+      ArtifactIdentifier id = parseNotation(notation);
+      downloads.put(notation, () -> MavenDownload.resolve(repoUrl, id, storeDir, segments, metaUtil));
+    }
+    if(getDeobfToolsService().isPresent()) {
+      DeobfToolsService service = getDeobfToolsService().get();
+      downloads.put("DeobfTools", service::getJar);
+    }
+    if(getMinecraftVersion().isPresent()) {
+      String version = getMinecraftVersion().get();
+      MCRepo repo = new MCRepo(getMinecraftRepoDir().get().getAsFile().toPath(), repoUrl, segments, metaUtil);
+      downloads.put("minecraft " + version, () -> repo.resolve("minecraft", version));
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(getMaxParallelDownloads().get(), downloads.size())));
+    try {
+      Map<String, Future<?>> futures = new LinkedHashMap<>();
+      downloads.forEach((name, download) -> futures.put(name, executor.submit(download)));
+      // Resolving on this thread overlaps with the downloads above. It has to happen on a thread managed by Gradle,
+      // which parallelizes the downloads of dependencies itself
+      Set<File> dependencies = getDependencies().getFiles();
+      StringBuilder resolved = new StringBuilder();
+      for(Map.Entry<String, Future<?>> e : futures.entrySet())
+        resolved.append(e.getKey()).append(" -> ").append(e.getValue().get()).append('\n');
+      for(File dependency : dependencies) resolved.append("dependency -> ").append(dependency).append('\n');
+      Files.write(getResolvedFile().get().getAsFile().toPath(), resolved.toString().getBytes(StandardCharsets.UTF_8));
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while prefetching", e);
+    } catch(ExecutionException e) {
+      if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      if(e.getCause() instanceof UncheckedIOException) throw ((UncheckedIOException) e.getCause()).getCause();
+      if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+      throw new RuntimeException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
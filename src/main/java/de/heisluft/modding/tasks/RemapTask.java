@@ -2,9 +2,13 @@ package de.heisluft.modding.tasks;
 
 
 import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.tasks.CacheableTask;
 import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
 
+@CacheableTask
 public abstract class RemapTask extends OutputtingJavaExec {
 
   public RemapTask() {
@@ -12,9 +16,11 @@ public abstract class RemapTask extends OutputtingJavaExec {
   }
 
   @InputFile
+  @PathSensitive(PathSensitivity.RELATIVE)
   public abstract RegularFileProperty getInput();
 
   @InputFile
+  @PathSensitive(PathSensitivity.RELATIVE)
   public abstract RegularFileProperty getMappings();
 
   @TaskAction
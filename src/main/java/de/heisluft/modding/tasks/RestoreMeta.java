@@ -1,11 +1,15 @@
 package de.heisluft.modding.tasks;
 
 import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.tasks.CacheableTask;
 import org.gradle.api.tasks.InputFile;
 import org.gradle.api.tasks.Optional;
 import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
 
+@CacheableTask
 public abstract class RestoreMeta extends OutputtingJavaExec {
 
   public RestoreMeta() {
@@ -14,6 +18,7 @@ public abstract class RestoreMeta extends OutputtingJavaExec {
   }
 
   @InputFile
+  @PathSensitive(PathSensitivity.RELATIVE)
   public abstract RegularFileProperty getInput();
 
   @OutputFile
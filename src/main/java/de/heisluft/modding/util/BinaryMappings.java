@@ -0,0 +1,314 @@
+package de.heisluft.modding.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * A compiled, memory-mapped form of a text mapping file. Lookups hash the queried names and compare them against the
+ * mapped file directly, so opening a mapping file costs a single mmap call regardless of its size, and all readers
+ * of a file share the same pages.
+ *
+ * <p>The text format is read line by line, ignoring blank lines, lines starting with {@code #} and unknown prefixes:
+ * <pre>
+ * CL: obf mapped
+ * FD: owner obf mapped           or  FD: owner/obf mappedOwner/mapped
+ * MD: owner obf desc mapped      or  MD: owner/obf desc mappedOwner/mapped mappedDesc
+ * </pre>
+ * Owners are always obfuscated class names.
+ *
+ * <p>The binary format consists of a header, a sorted string table and a class, field and method table, each
+ * followed by an open addressing hash index. All numbers are big endian ints, strings are referenced by their index
+ * within the string table:
+ * <pre>
+ * header:  magic, version, string count, class count, field count, method count
+ * strings: (count + 1) offsets into the blob, relative to its start, then the UTF-8 blob
+ * classes: (obf, mapped) per entry, sorted by obf
+ * fields:  (owner, obf, mapped) per entry, sorted by owner and obf
+ * methods: (owner, obf, desc, mapped) per entry, sorted by owner, obf and desc
+ * index:   capacity (a power of two), then capacity slots holding entry index + 1, or 0 if empty
+ * </pre>
+ * Keys are hashed with 32 bit FNV-1a over the UTF-8 bytes of their components, each followed by a zero byte, and
+ * probed linearly.
+ */
+public final class BinaryMappings {
+  private static final int MAGIC = 0x46524742, VERSION = 1, HEADER_SIZE = 6 * 4;
+  private static final int CLASS_WIDTH = 2, FIELD_WIDTH = 3, METHOD_WIDTH = 4;
+
+  private final ByteBuffer buf;
+  private final int stringCount, offsetsPos, blobPos;
+  private final int classCount, classesPos, classIndexPos;
+  private final int fieldCount, fieldsPos, fieldIndexPos;
+  private final int methodCount, methodsPos, methodIndexPos;
+
+  private BinaryMappings(ByteBuffer buf) throws IOException {
+    this.buf = buf;
+    if(buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC) throw new IOException("Not a binary mapping file");
+    if(buf.getInt(4) != VERSION) throw new IOException("Unsupported binary mapping version " + buf.getInt(4));
+    stringCount = buf.getInt(8);
+    classCount = buf.getInt(12);
+    fieldCount = buf.getInt(16);
+    methodCount = buf.getInt(20);
+    offsetsPos = HEADER_SIZE;
+    blobPos = offsetsPos + (stringCount + 1) * 4;
+    classesPos = blobPos + buf.getInt(offsetsPos + stringCount * 4);
+    classIndexPos = classesPos + classCount * CLASS_WIDTH * 4;
+    fieldsPos = indexEnd(classIndexPos);
+    fieldIndexPos = fieldsPos + fieldCount * FIELD_WIDTH * 4;
+    methodsPos = indexEnd(fieldIndexPos);
+    methodIndexPos = methodsPos + methodCount * METHOD_WIDTH * 4;
+    if(indexEnd(methodIndexPos) != buf.limit()) throw new IOException("Truncated binary mapping file");
+  }
+
+  private int indexEnd(int indexPos) {
+    return indexPos + 4 + buf.getInt(indexPos) * 4;
+  }
+
+  /**
+   * Memory-maps a binary mapping file. The mapping is only released once the returned instance is garbage collected.
+   * Until then, replacing the file fails on Windows, while other systems keep the old contents mapped.
+   *
+   * @param file the file to map
+   * @return the mapped mappings
+   * @throws IOException if the file could not be mapped or is not a binary mapping file
+   */
+  public static BinaryMappings open(Path file) throws IOException {
+    try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return new BinaryMappings(buf);
+    }
+  }
+
+  public int classCount() {
+    return classCount;
+  }
+
+  public int fieldCount() {
+    return fieldCount;
+  }
+
+  public int methodCount() {
+    return methodCount;
+  }
+
+  /**
+   * @param obf the obfuscated class name
+   * @return the mapped class name, or null if the class is not mapped
+   */
+  public String mapClass(String obf) {
+    byte[][] key = {utf8(obf)};
+    int entry = find(classIndexPos, classesPos, CLASS_WIDTH, key);
+    return entry < 0 ? null : string(buf.getInt(classesPos + (entry * CLASS_WIDTH + 1) * 4));
+  }
+
+  /**
+   * @param owner the obfuscated name of the declaring class
+   * @param obf the obfuscated field name
+   * @return the mapped field name, or null if the field is not mapped
+   */
+  public String mapField(String owner, String obf) {
+    byte[][] key = {utf8(owner), utf8(obf)};
+    int entry = find(fieldIndexPos, fieldsPos, FIELD_WIDTH, key);
+    return entry < 0 ? null : string(buf.getInt(fieldsPos + (entry * FIELD_WIDTH + 2) * 4));
+  }
+
+  /**
+   * @param owner the obfuscated name of the declaring class
+   * @param obf the obfuscated method name
+   * @param desc the obfuscated method descriptor
+   * @return the mapped method name, or null if the method is not mapped
+   */
+  public String mapMethod(String owner, String obf, String desc) {
+    byte[][] key = {utf8(owner), utf8(obf), utf8(desc)};
+    int entry = find(methodIndexPos, methodsPos, METHOD_WIDTH, key);
+    return entry < 0 ? null : string(buf.getInt(methodsPos + (entry * METHOD_WIDTH + 3) * 4));
+  }
+
+  /**
+   * Probes an index for the entry whose first key.length columns equal key.
+   *
+   * @return the index of the entry, or -1 if there is none
+   */
+  private int find(int indexPos, int tablePos, int width, byte[][] key) {
+    int capacity = buf.getInt(indexPos);
+    if(capacity == 0) return -1;
+    for(int slot = hash(key) & (capacity - 1); ; slot = (slot + 1) & (capacity - 1)) {
+      int entry = buf.getInt(indexPos + 4 + slot * 4) - 1;
+      if(entry < 0) return -1;
+      int entryPos = tablePos + entry * width * 4;
+      boolean matches = true;
+      for(int i = 0; i < key.length && matches; i++) matches = stringEquals(buf.getInt(entryPos + i * 4), key[i]);
+      if(matches) return entry;
+    }
+  }
+
+  private boolean stringEquals(int id, byte[] bytes) {
+    int start = buf.getInt(offsetsPos + id * 4), end = buf.getInt(offsetsPos + id * 4 + 4);
+    if(end - start != bytes.length) return false;
+    for(int i = 0; i < bytes.length; i++) if(buf.get(blobPos + start + i) != bytes[i]) return false;
+    return true;
+  }
+
+  private String string(int id) {
+    int start = buf.getInt(offsetsPos + id * 4), end = buf.getInt(offsetsPos + id * 4 + 4);
+    byte[] bytes = new byte[end - start];
+    for(int i = 0; i < bytes.length; i++) bytes[i] = buf.get(blobPos + start + i);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static byte[] utf8(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static int hash(byte[][] key) {
+    int hash = 0x811c9dc5;
+    for(byte[] part : key) {
+      for(byte b : part) hash = (hash ^ (b & 0xff)) * 0x01000193;
+      hash *= 0x01000193;
+    }
+    return hash;
+  }
+
+  /**
+   * Compiles a text mapping file. The output is written to a temporary file first and moved into place, so readers
+   * that mapped a previous version keep a consistent view. On Windows, the move fails while binary is still mapped, see
+   * {@link #open(Path)}. The same input always produces the same bytes.
+   *
+   * @param text the text mapping file to read
+   * @param binary the binary file to write
+   * @throws IOException if text could not be read or is malformed, or binary could not be written
+   */
+  public static void compile(Path text, Path binary) throws IOException {
+    List<String[]> classes = new ArrayList<>(), fields = new ArrayList<>(), methods = new ArrayList<>();
+    List<String> lines = Files.readAllLines(text, StandardCharsets.UTF_8);
+    for(int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i).trim();
+      if(line.isEmpty() || line.startsWith("#")) continue;
+      String[] tokens = line.split("\\s+");
+      switch(tokens[0]) {
+        case "CL:":
+          if(tokens.length != 3) throw malformed(text, i, line);
+          classes.add(new String[]{tokens[1], tokens[2]});
+          break;
+        case "FD:":
+          if(tokens.length == 4) fields.add(new String[]{tokens[1], tokens[2], tokens[3]});
+          else if(tokens.length == 3 && tokens[1].indexOf('/') > 0) fields.add(new String[]{owner(tokens[1]), name(tokens[1]), name(tokens[2])});
+          else throw malformed(text, i, line);
+          break;
+        case "MD:":
+          if(tokens.length == 5 && tokens[1].indexOf('/') > 0 && tokens[2].startsWith("("))
+            methods.add(new String[]{owner(tokens[1]), name(tokens[1]), tokens[2], name(tokens[3])});
+          else if(tokens.length == 5 && tokens[3].startsWith("("))
+            methods.add(new String[]{tokens[1], tokens[2], tokens[3], tokens[4]});
+          else throw malformed(text, i, line);
+          break;
+        default:
+          // Exceptions, parameters and other data the plugin doesn't look up
+      }
+    }
+    byte[] compiled = write(classes, fields, methods);
+    Files.createDirectories(binary.toAbsolutePath().getParent());
+    Path tmp = Files.createTempFile(binary.toAbsolutePath().getParent(), binary.getFileName().toString(), ".tmp");
+    try {
+      Files.write(tmp, compiled);
+      Files.move(tmp, binary, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  private static IOException malformed(Path text, int line, String content) {
+    return new IOException("Malformed mapping at " + text + ":" + (line + 1) + ": " + content);
+  }
+
+  private static String owner(String qualified) {
+    return qualified.substring(0, qualified.lastIndexOf('/'));
+  }
+
+  private static String name(String qualified) {
+    return qualified.substring(qualified.lastIndexOf('/') + 1);
+  }
+
+  private static byte[] write(List<String[]> classes, List<String[]> fields, List<String[]> methods) {
+    TreeSet<String> stringSet = new TreeSet<>();
+    for(List<String[]> table : Arrays.asList(classes, fields, methods)) for(String[] entry : table) stringSet.addAll(Arrays.asList(entry));
+    String[] strings = stringSet.toArray(new String[0]);
+    Map<String, Integer> ids = new HashMap<>();
+    byte[][] encoded = new byte[strings.length][];
+    int blobSize = 0;
+    for(int i = 0; i < strings.length; i++) {
+      ids.put(strings[i], i);
+      encoded[i] = utf8(strings[i]);
+      blobSize += encoded[i].length;
+    }
+    int[][] classTable = toIds(classes, ids, 1), fieldTable = toIds(fields, ids, 2), methodTable = toIds(methods, ids, 3);
+    int size = HEADER_SIZE + (strings.length + 1) * 4 + blobSize + tableSize(classTable, CLASS_WIDTH) +
+        tableSize(fieldTable, FIELD_WIDTH) + tableSize(methodTable, METHOD_WIDTH);
+    ByteBuffer out = ByteBuffer.allocate(size);
+    out.putInt(MAGIC).putInt(VERSION).putInt(strings.length).putInt(classTable.length).putInt(fieldTable.length).putInt(methodTable.length);
+    int offset = 0;
+    for(byte[] string : encoded) {
+      out.putInt(offset);
+      offset += string.length;
+    }
+    out.putInt(offset);
+    for(byte[] string : encoded) out.put(string);
+    putTable(out, classTable, 1, encoded);
+    putTable(out, fieldTable, 2, encoded);
+    putTable(out, methodTable, 3, encoded);
+    return out.array();
+  }
+
+  /**
+   * Converts entries to string ids, sorted by their keys. Later entries with the same key replace earlier ones.
+   */
+  private static int[][] toIds(List<String[]> entries, Map<String, Integer> ids, int keyWidth) {
+    Map<List<Integer>, int[]> byKey = new HashMap<>();
+    for(String[] entry : entries) {
+      int[] row = new int[entry.length];
+      for(int i = 0; i < row.length; i++) row[i] = ids.get(entry[i]);
+      List<Integer> key = new ArrayList<>();
+      for(int i = 0; i < keyWidth; i++) key.add(row[i]);
+      byKey.put(key, row);
+    }
+    int[][] table = byKey.values().toArray(new int[0][]);
+    // String ids are ranks within the sorted string table, so this sorts by name
+    Arrays.sort(table, (a, b) -> Arrays.compare(a, 0, keyWidth, b, 0, keyWidth));
+    return table;
+  }
+
+  private static int capacity(int entries) {
+    return entries == 0 ? 0 : Integer.highestOneBit(entries * 2 - 1) << 1;
+  }
+
+  private static int tableSize(int[][] table, int width) {
+    return (table.length * width + 1 + capacity(table.length)) * 4;
+  }
+
+  private static void putTable(ByteBuffer out, int[][] table, int keyWidth, byte[][] encoded) {
+    for(int[] row : table) for(int column : row) out.putInt(column);
+    int capacity = capacity(table.length);
+    int[] slots = new int[capacity];
+    for(int entry = 0; entry < table.length; entry++) {
+      byte[][] key = new byte[keyWidth][];
+      for(int i = 0; i < keyWidth; i++) key[i] = encoded[table[entry][i]];
+      int slot = hash(key) & (capacity - 1);
+      while(slots[slot] != 0) slot = (slot + 1) & (capacity - 1);
+      slots[slot] = entry + 1;
+    }
+    out.putInt(capacity);
+    for(int slot : slots) out.putInt(slot);
+  }
+}
@@ -0,0 +1,128 @@
+package de.heisluft.modding.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Extracts the names of all classes a class file refers to directly, by reading its constant pool. This includes
+ * class constants as well as every object type mentioned within field and method descriptors or signatures.
+ */
+public final class ClassReferences {
+  private ClassReferences() {}
+
+  /**
+   * Reads the internal names of all classes referenced by the constant pool of a class file.
+   *
+   * @param classFile the bytes of the class file
+   * @return the internal names of all referenced classes, including the class itself
+   * @throws IllegalArgumentException if the bytes are not a class file or the constant pool is malformed
+   */
+  public static Set<String> of(byte[] classFile) {
+    ConstantPool pool = ConstantPool.read(ByteBuffer.wrap(classFile), classFile);
+    Set<String> result = new HashSet<>();
+    for(int index : pool.classNames) {
+      String name = pool.utf8[index];
+      if(name == null) continue;
+      if(name.startsWith("[")) addDescriptorTypes(name, result);
+      else result.add(name);
+    }
+    for(String s : pool.utf8) if(s != null && s.indexOf(';') > 0) addDescriptorTypes(s, result);
+    return result;
+  }
+
+  /**
+   * The strings and class names of a constant pool. Other constants are skipped.
+   */
+  static final class ConstantPool {
+    /** The Utf8 constants by their index, null for other constants */
+    final String[] utf8;
+    /** The Utf8 index of the name of every Class constant, in order */
+    final int[] classNames;
+    /** The Utf8 index of the name of each Class constant by its index, 0 for other constants */
+    final int[] classNameByIndex;
+
+    private ConstantPool(String[] utf8, int[] classNames, int[] classNameByIndex) {
+      this.utf8 = utf8;
+      this.classNames = classNames;
+      this.classNameByIndex = classNameByIndex;
+    }
+
+    /**
+     * Reads the constant pool of a class file, leaving buf positioned at the access flags following it.
+     *
+     * @throws IllegalArgumentException if the bytes are not a class file or the constant pool is malformed
+     */
+    static ConstantPool read(ByteBuffer buf, byte[] classFile) {
+      if(classFile.length < 10 || buf.getInt() != 0xCAFEBABE) throw new IllegalArgumentException("Not a class file");
+      buf.position(8);
+      int count = buf.getShort() & 0xFFFF;
+      String[] utf8 = new String[count];
+      int[] classNameByIndex = new int[count];
+      int classes = 0;
+      try {
+        for(int i = 1; i < count; i++) {
+          int tag = buf.get();
+          switch(tag) {
+            case 1:
+              int len = buf.getShort() & 0xFFFF;
+              // Modified UTF-8 only differs for NUL and supplementary chars, neither of which appear in type names
+              utf8[i] = new String(classFile, buf.position(), len, StandardCharsets.UTF_8);
+              buf.position(buf.position() + len);
+              break;
+            case 7:
+              classNameByIndex[i] = buf.getShort() & 0xFFFF;
+              classes++;
+              break;
+            case 8: case 16: case 19: case 20:
+              buf.position(buf.position() + 2);
+              break;
+            case 15:
+              buf.position(buf.position() + 3);
+              break;
+            case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+              buf.position(buf.position() + 4);
+              break;
+            case 5: case 6:
+              buf.position(buf.position() + 8);
+              i++;
+              break;
+            default:
+              throw new IllegalArgumentException("Unknown constant pool tag " + tag + " at index " + i);
+          }
+        }
+      } catch(RuntimeException e) {
+        if(e instanceof IllegalArgumentException) throw e;
+        throw new IllegalArgumentException("Malformed constant pool", e);
+      }
+      int[] classNames = new int[classes];
+      for(int i = 1, j = 0; i < count; i++) if(classNameByIndex[i] != 0) classNames[j++] = classNameByIndex[i];
+      return new ConstantPool(utf8, classNames, classNameByIndex);
+    }
+
+    /**
+     * @return the class name the Class constant at index refers to, null for index 0 or other constants
+     */
+    String className(int index) {
+      return index == 0 ? null : utf8[classNameByIndex[index]];
+    }
+  }
+
+  /**
+   * Adds every object type within a descriptor or signature. Strings which merely look like descriptors may add bogus
+   * names, which is harmless as callers only look up names of classes they know.
+   */
+  private static void addDescriptorTypes(String descriptor, Set<String> result) {
+    int start = -1;
+    for(int i = 0; i < descriptor.length(); i++) {
+      char c = descriptor.charAt(i);
+      if(start < 0) {
+        if(c == 'L') start = i + 1;
+      } else if(c == ';' || c == '<') {
+        if(i > start) result.add(descriptor.substring(start, i));
+        start = -1;
+      } else if(c == '(' || c == ')' || c == ' ') start = -1;
+    }
+  }
+}
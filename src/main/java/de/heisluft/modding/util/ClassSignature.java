@@ -0,0 +1,97 @@
+package de.heisluft.modding.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The part of a class file other classes are compiled and decompiled against: its name, access flags, supertypes,
+ * generic signature, nested classes and the access flags, names, descriptors and generic signatures of its members.
+ * Method bodies and all other attributes are left out, so changing them does not change the signature.
+ */
+public final class ClassSignature {
+  /** The internal names of the superclass, if any, and all directly implemented interfaces */
+  public final List<String> supertypes;
+  /** The SHA-512 hash of the signature, in hex */
+  public final String hash;
+
+  private ClassSignature(List<String> supertypes, String hash) {
+    this.supertypes = supertypes;
+    this.hash = hash;
+  }
+
+  /**
+   * Reads the signature of a class file.
+   *
+   * @param classFile the bytes of the class file
+   * @return the signature
+   * @throws IllegalArgumentException if the bytes are not a class file or it is malformed
+   */
+  public static ClassSignature of(byte[] classFile) {
+    ByteBuffer buf = ByteBuffer.wrap(classFile);
+    ClassReferences.ConstantPool pool = ClassReferences.ConstantPool.read(buf, classFile);
+    try {
+      StringBuilder text = new StringBuilder();
+      int access = buf.getShort() & 0xFFFF;
+      text.append(access).append(' ').append(pool.className(buf.getShort() & 0xFFFF));
+      List<String> supertypes = new ArrayList<>();
+      String superName = pool.className(buf.getShort() & 0xFFFF);
+      if(superName != null) supertypes.add(superName);
+      int interfaces = buf.getShort() & 0xFFFF;
+      for(int i = 0; i < interfaces; i++) supertypes.add(pool.className(buf.getShort() & 0xFFFF));
+      text.append(" extends ").append(String.join(" ", supertypes));
+      // Member order does not matter to classes using them
+      text.append("\nfields");
+      readMembers(buf, pool, text);
+      text.append("\nmethods");
+      readMembers(buf, pool, text);
+      int attributes = buf.getShort() & 0xFFFF;
+      for(int i = 0; i < attributes; i++) {
+        String name = pool.utf8[buf.getShort() & 0xFFFF];
+        int length = buf.getInt();
+        int end = buf.position() + length;
+        if("Signature".equals(name)) text.append("\nsignature ").append(pool.utf8[buf.getShort() & 0xFFFF]);
+        else if("InnerClasses".equals(name)) {
+          int classes = buf.getShort() & 0xFFFF;
+          for(int j = 0; j < classes; j++) {
+            text.append("\ninner ").append(pool.className(buf.getShort() & 0xFFFF));
+            text.append(' ').append(pool.className(buf.getShort() & 0xFFFF));
+            int innerName = buf.getShort() & 0xFFFF;
+            text.append(' ').append(innerName == 0 ? null : pool.utf8[innerName]);
+            text.append(' ').append(buf.getShort() & 0xFFFF);
+          }
+        }
+        buf.position(end);
+      }
+      return new ClassSignature(Collections.unmodifiableList(supertypes), Hashing.sha512Hex(text.toString()));
+    } catch(RuntimeException e) {
+      if(e instanceof IllegalArgumentException) throw e;
+      throw new IllegalArgumentException("Malformed class file", e);
+    }
+  }
+
+  /**
+   * Appends the fields or methods at the position of buf, sorted, and skips past them.
+   */
+  private static void readMembers(ByteBuffer buf, ClassReferences.ConstantPool pool, StringBuilder text) {
+    int count = buf.getShort() & 0xFFFF;
+    List<String> members = new ArrayList<>(count);
+    for(int i = 0; i < count; i++) {
+      StringBuilder member = new StringBuilder();
+      member.append(buf.getShort() & 0xFFFF).append(' ').append(pool.utf8[buf.getShort() & 0xFFFF]);
+      member.append(' ').append(pool.utf8[buf.getShort() & 0xFFFF]);
+      int attributes = buf.getShort() & 0xFFFF;
+      for(int j = 0; j < attributes; j++) {
+        String name = pool.utf8[buf.getShort() & 0xFFFF];
+        int length = buf.getInt();
+        int end = buf.position() + length;
+        if("Signature".equals(name)) member.append(' ').append(pool.utf8[buf.getShort() & 0xFFFF]);
+        buf.position(end);
+      }
+      members.add(member.toString());
+    }
+    Collections.sort(members);
+    for(String member : members) text.append('\n').append(member);
+  }
+}
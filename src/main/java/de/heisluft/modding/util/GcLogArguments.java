@@ -0,0 +1,86 @@
+package de.heisluft.modding.util;
+
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.Internal;
+import org.gradle.process.CommandLineArgumentProvider;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Makes forked JVMs log their garbage collections into a directory, one file per process, from which the peak heap
+ * usage of all of them can be read afterwards. Neither the directory nor the java version are inputs, so adding these
+ * arguments does not change the cache key of a task.
+ */
+public class GcLogArguments implements CommandLineArgumentProvider {
+  /** Matches the heap usage before and after a collection, e.g. {@code 33280K->5102K(125952K)} or {@code 23M->2M(256M)} */
+  private static final Pattern HEAP_CHANGE = Pattern.compile("(\\d+)([KMG])->\\d+[KMG]\\(\\d+[KMG]\\)");
+
+  private final File logDir;
+  private final Provider<Integer> javaVersion;
+
+  /**
+   * @param logDir the directory to write logs to
+   * @param javaVersion the language version of the forked JVM, as the logging flags changed with Java 9
+   */
+  public GcLogArguments(File logDir, Provider<Integer> javaVersion) {
+    this.logDir = logDir;
+    this.javaVersion = javaVersion;
+  }
+
+  @Internal
+  public File getLogDir() {
+    return logDir;
+  }
+
+  @Internal
+  public Provider<Integer> getJavaVersion() {
+    return javaVersion;
+  }
+
+  @Override
+  public Iterable<String> asArguments() {
+    // %p is replaced by the pid, so that concurrently forked JVMs don't share a file
+    String logFile = new File(logDir, "gc-%p.log").getAbsolutePath();
+    if(javaVersion.getOrElse(8) < 9) return List.of("-Xloggc:" + logFile);
+    return List.of("-Xlog:gc:file=\"" + logFile + "\"");
+  }
+
+  /**
+   * Reads the peak heap usage from all logs within a directory. As the usage is only logged on collections, this is
+   * the largest usage any JVM collected at.
+   *
+   * @param logDir the directory the logs were written to
+   * @return the peak usage in bytes, or -1 if no collection was logged
+   * @throws IOException if the logs could not be read
+   */
+  public static long peakHeap(File logDir) throws IOException {
+    if(!logDir.isDirectory()) return -1;
+    List<Path> logs;
+    try(Stream<Path> s = Files.list(logDir.toPath())) {
+      logs = s.filter(Files::isRegularFile).collect(Collectors.toList());
+    }
+    long peak = -1;
+    for(Path log : logs) {
+      Matcher matcher = HEAP_CHANGE.matcher(new String(Files.readAllBytes(log), StandardCharsets.UTF_8));
+      while(matcher.find()) {
+        long used = Long.parseLong(matcher.group(1));
+        switch(matcher.group(2)) {
+          case "G": used <<= 30; break;
+          case "M": used <<= 20; break;
+          default: used <<= 10;
+        }
+        peak = Math.max(peak, used);
+      }
+    }
+    return peak;
+  }
+}
@@ -0,0 +1,127 @@
+package de.heisluft.modding.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.Predicate;
+
+/**
+ * Matches names against a set of ant-style patterns at once. {@code *} matches any sequence of characters except
+ * {@code /}, {@code **} matches any sequence of characters, everything else matches itself.
+ * <p>
+ * The literal prefixes of all patterns (everything up to the first wildcard) are compiled into a trie, so that each
+ * name is walked only once regardless of the number of patterns. The remaining wildcard tails are matched against the
+ * rest of the name from the trie node their prefix ends at. Matching does not allocate.
+ */
+public final class GlobMatcher implements Predicate<String> {
+  private static final int STAR = -1, DOUBLE_STAR = -2;
+  private static final int[][] NO_TAILS = new int[0][];
+
+  private final Node root = new Node();
+
+  private GlobMatcher() {}
+
+  /**
+   * Compiles a list of patterns into a matcher. An empty list yields a matcher matching nothing.
+   *
+   * @param patterns the patterns to compile
+   * @return the compiled matcher
+   */
+  public static GlobMatcher compile(Collection<String> patterns) {
+    GlobMatcher matcher = new GlobMatcher();
+    for(String pattern : patterns) matcher.add(pattern);
+    return matcher;
+  }
+
+  private void add(String pattern) {
+    int[] tokens = new int[pattern.length()];
+    int len = 0;
+    for(int i = 0; i < pattern.length(); i++) {
+      char c = pattern.charAt(i);
+      if(c != '*') tokens[len++] = c;
+      else if(i < pattern.length() - 1 && pattern.charAt(i + 1) == '*') {
+        tokens[len++] = DOUBLE_STAR;
+        i++;
+      } else tokens[len++] = STAR;
+    }
+    Node node = root;
+    int pos = 0;
+    while(pos < len && tokens[pos] >= 0) node = node.getOrCreate((char) tokens[pos++]);
+    int[] tail = Arrays.copyOfRange(tokens, pos, len);
+    if(tail.length == 1 && tail[0] == DOUBLE_STAR) node.matchesAll = true;
+    else {
+      node.tails = Arrays.copyOf(node.tails, node.tails.length + 1);
+      node.tails[node.tails.length - 1] = tail;
+    }
+  }
+
+  /**
+   * Tests a name against all patterns of this matcher.
+   *
+   * @param name the name to test
+   * @return whether any pattern matches the whole name
+   */
+  public boolean matches(CharSequence name) {
+    Node node = root;
+    int len = name.length();
+    for(int i = 0; ; i++) {
+      if(node.matchesAll) return true;
+      for(int[] tail : node.tails) if(matchTail(tail, 0, name, i, len)) return true;
+      if(i == len || (node = node.get(name.charAt(i))) == null) return false;
+    }
+  }
+
+  @Override
+  public boolean test(String name) {
+    return matches(name);
+  }
+
+  private static boolean matchTail(int[] tail, int ti, CharSequence name, int ni, int len) {
+    for(; ti < tail.length; ti++, ni++) {
+      int token = tail[ti];
+      if(token == DOUBLE_STAR) {
+        if(ti == tail.length - 1) return true;
+        // A literal suffix can only match at one position
+        if(isLiteral(tail, ti + 1)) return len - ni >= tail.length - ti - 1 && matchTail(tail, ti + 1, name, len - (tail.length - ti - 1), len);
+        for(int k = ni; k <= len; k++) if(matchTail(tail, ti + 1, name, k, len)) return true;
+        return false;
+      }
+      if(token == STAR) {
+        for(int k = ni; k <= len; k++) {
+          if(matchTail(tail, ti + 1, name, k, len)) return true;
+          if(k < len && name.charAt(k) == '/') return false;
+        }
+        return false;
+      }
+      if(ni >= len || name.charAt(ni) != token) return false;
+    }
+    return ni == len;
+  }
+
+  private static boolean isLiteral(int[] tail, int from) {
+    for(int i = from; i < tail.length; i++) if(tail[i] < 0) return false;
+    return true;
+  }
+
+  private static final class Node {
+    private char[] keys = new char[0];
+    private Node[] children = new Node[0];
+    private int[][] tails = NO_TAILS;
+    private boolean matchesAll;
+
+    private Node get(char c) {
+      for(int i = 0; i < keys.length; i++) if(keys[i] == c) return children[i];
+      return null;
+    }
+
+    private Node getOrCreate(char c) {
+      Node child = get(c);
+      if(child != null) return child;
+      child = new Node();
+      keys = Arrays.copyOf(keys, keys.length + 1);
+      children = Arrays.copyOf(children, children.length + 1);
+      keys[keys.length - 1] = c;
+      children[children.length - 1] = child;
+      return child;
+    }
+  }
+}
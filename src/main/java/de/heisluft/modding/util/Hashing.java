@@ -0,0 +1,186 @@
+package de.heisluft.modding.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-512 hashing safe for concurrent use. Each thread gets its own digest. Files are hashed through a reused buffer or,
+ * if large, through memory mapped regions, so they never need to fit on the heap.
+ */
+public final class Hashing {
+  /** Files at least this large are mapped instead of read */
+  private static final long MAP_THRESHOLD = 16 << 20;
+  /** The size of each mapped region */
+  private static final long MAP_REGION = 256 << 20;
+  private static final String VERIFIED_SUFFIX = ".verified";
+
+  private static final ThreadLocal<MessageDigest> SHA_512 = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("SHA-512");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  });
+
+  private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(64 << 10));
+
+  private Hashing() {}
+
+  /**
+   * Returns the SHA-512 digest of the calling thread, reset to its initial state. The digest must not be handed to
+   * other threads.
+   *
+   * @return the digest
+   */
+  public static MessageDigest sha512() {
+    MessageDigest digest = SHA_512.get();
+    digest.reset();
+    return digest;
+  }
+
+  /**
+   * Computes the SHA-512 hash of the given bytes.
+   *
+   * @param bytes the bytes to hash
+   * @return the hash
+   */
+  public static byte[] sha512(byte[] bytes) {
+    return sha512().digest(bytes);
+  }
+
+  /**
+   * Computes the SHA-512 hash of the given bytes.
+   *
+   * @param bytes the bytes to hash
+   * @return the hash as lowercase hex string
+   */
+  public static String sha512Hex(byte[] bytes) {
+    return Util.bytesToHex(sha512(bytes));
+  }
+
+  /**
+   * Computes the SHA-512 hash of the UTF-8 encoding of a string.
+   *
+   * @param s the string to hash
+   * @return the hash as lowercase hex string
+   */
+  public static String sha512Hex(String s) {
+    return sha512Hex(s.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Computes the SHA-512 hash of a file's contents.
+   *
+   * @param file the file to hash
+   * @return the hash
+   * @throws IOException if the file could not be read
+   */
+  public static byte[] sha512(Path file) throws IOException {
+    MessageDigest digest = sha512();
+    try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if(size >= MAP_THRESHOLD) {
+        for(long pos = 0; pos < size; pos += MAP_REGION) {
+          MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_REGION, size - pos));
+          digest.update(region);
+        }
+      } else {
+        ByteBuffer buf = BUFFER.get();
+        buf.clear();
+        while(channel.read(buf) != -1) {
+          buf.flip();
+          digest.update(buf);
+          buf.clear();
+        }
+      }
+    }
+    return digest.digest();
+  }
+
+  /**
+   * Computes the SHA-512 hash of a file's contents.
+   *
+   * @param file the file to hash
+   * @return the hash as lowercase hex string
+   * @throws IOException if the file could not be read
+   */
+  public static String sha512Hex(Path file) throws IOException {
+    return Util.bytesToHex(sha512(file));
+  }
+
+  /**
+   * Looks up the hash recorded by {@link #recordVerified(Path, String)}. The record is only valid as long as size and
+   * modification time of the file stay the same.
+   *
+   * @param file the file to look up
+   * @return the recorded hash, or null if there is no valid record
+   * @throws IOException if the file or its record could not be read
+   */
+  public static String verifiedSha512Hex(Path file) throws IOException {
+    return readRecord(file, file.resolveSibling(file.getFileName() + VERIFIED_SUFFIX));
+  }
+
+  /**
+   * Records that a file was verified to have the given hash, along with its current size and modification time.
+   *
+   * @param file the verified file
+   * @param sha512Hex the hash the file was verified against
+   * @throws IOException if the record could not be written
+   */
+  public static void recordVerified(Path file, String sha512Hex) throws IOException {
+    writeRecord(file, file.resolveSibling(file.getFileName() + VERIFIED_SUFFIX), sha512Hex);
+  }
+
+  /**
+   * Computes the SHA-512 hash of a file's contents, reusing the hash recorded within recordDir by a previous call as
+   * long as size and modification time of the file stay the same. Unlike {@link #recordVerified(Path, String)}, this
+   * leaves the directory of the file untouched.
+   *
+   * @param file the file to hash
+   * @param recordDir the directory to keep records in, one per absolute file path
+   * @return the hash as lowercase hex string
+   * @throws IOException if the file could not be read or the record could not be written
+   */
+  public static String recordedSha512Hex(Path file, Path recordDir) throws IOException {
+    String pathHash = sha512Hex(file.toAbsolutePath().toString());
+    Path record = recordDir.resolve(pathHash.substring(0, 2)).resolve(pathHash);
+    String hash = readRecord(file, record);
+    if(hash != null) return hash;
+    hash = sha512Hex(file);
+    Files.createDirectories(record.getParent());
+    writeRecord(file, record, hash);
+    return hash;
+  }
+
+  private static String readRecord(Path file, Path record) throws IOException {
+    if(!Files.isRegularFile(file) || !Files.isRegularFile(record)) return null;
+    String[] parts = new String(Files.readAllBytes(record), StandardCharsets.UTF_8).trim().split(" ");
+    if(parts.length != 3) return null;
+    if(!parts[0].equals(String.valueOf(Files.size(file)))) return null;
+    if(!parts[1].equals(String.valueOf(Files.getLastModifiedTime(file).toMillis()))) return null;
+    return parts[2];
+  }
+
+  /**
+   * Writes a record by moving it into place, so concurrent readers never see a partially written hash.
+   */
+  private static void writeRecord(Path file, Path record, String sha512Hex) throws IOException {
+    Path tmp = Files.createTempFile(record.getParent(), record.getFileName().toString(), ".tmp");
+    try {
+      Files.write(tmp, (Files.size(file) + " " + Files.getLastModifiedTime(file).toMillis() + " " + sha512Hex)
+          .getBytes(StandardCharsets.UTF_8));
+      Files.move(tmp, record, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+}
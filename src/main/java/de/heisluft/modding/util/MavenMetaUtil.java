@@ -1,60 +1,204 @@
-package de.heisluft.modding.util;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
-
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.UncheckedIOException;
-import java.net.URL;
-import java.util.*;
-
-public class MavenMetaUtil {
-
-  private static final Map<String, Map<String, Set<String>>> VALID_CACHE = new HashMap<>();
-
-  public static boolean versionExists(String repoUrl, String group, String name, String version) throws IOException {
-    String base = group.replace('.', '/') + "/" + name + "/";
-    VALID_CACHE.putIfAbsent(repoUrl, new HashMap<>());
-    Map<String, Set<String>> cacheForRepo = VALID_CACHE.get(repoUrl);
-    try {
-      cacheForRepo.computeIfAbsent(base, s -> {
-        try {
-          return getVersions(parseXML(repoUrl + s + "maven-metadata.xml"));
-        } catch (IOException | SAXException e) {
-          throw new UncheckedIOException(new IOException("Invalid content in " + repoUrl + s + "maven-metadata.xml", e));
-        }
-      });
-    } catch (UncheckedIOException e) {
-      throw e.getCause();
-    }
-    return cacheForRepo.get(base).contains(version);
-  }
-
-  public static Document parseXML(String url) throws IOException, SAXException {
-    try(InputStream is = new URL(url).openStream()) {
-      return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(is);
-    } catch (ParserConfigurationException impossible) {
-      throw new AssertionError("The default doc builder is misconfigured per default???", impossible);
-    }
-  }
-
-  public static Set<String> getVersions(Document document) throws IOException {
-    NodeList versionsQuery = document.getElementsByTagName("versions");
-    if(versionsQuery.getLength() == 0) throw new IOException("maven-metadata.xml misses <versions> tag");
-    Set<String> versions = new HashSet<>();
-    NodeList versionElements = versionsQuery.item(0).getChildNodes();
-    for (int i = 0; i < versionElements.getLength(); i++) {
-      Node node = versionElements.item(i);
-      if (!(node instanceof Element)) continue;
-      Element element = (Element) node;
-      if (element.getTagName().equals("version")) versions.add(element.getTextContent());
-    }
-    return versions;
-  }
-}
\ No newline at end of file
+package de.heisluft.modding.util;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fetches and caches maven-metadata.xml files. Parsed metadata is kept in memory for the lifetime of the daemon and
+ * on disk, if configured. Both layers are valid for a configurable time to live, within which no network requests are
+ * made. Instances only hold their configuration, so they can be created wherever needed, e.g. within task actions
+ * restored from the configuration cache.
+ */
+public class MavenMetaUtil {
+
+  private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+
+  static {
+    XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+  }
+
+  private static final Map<String, Metadata> MEMORY_CACHE = new ConcurrentHashMap<>();
+  private final Path diskCache;
+  private final long ttlMillis;
+
+  /**
+   * The parsed contents of a maven-metadata.xml file.
+   */
+  public static final class Metadata {
+    /** The value of the latest tag, or null if absent */
+    public final String latest;
+    /** The value of the release tag, or null if absent */
+    public final String release;
+    /** All versions listed, or null if there is no versions tag */
+    public final Set<String> versions;
+    /** The snapshot timestamp, or null if this is not snapshot metadata */
+    public final String snapshotTimestamp;
+    /** The snapshot build number, or null if this is not snapshot metadata */
+    public final String snapshotBuildNumber;
+    private final long fetchedAt;
+
+    private Metadata(String latest, String release, Set<String> versions, String snapshotTimestamp, String snapshotBuildNumber, long fetchedAt) {
+      this.latest = latest;
+      this.release = release;
+      this.versions = versions == null ? null : Collections.unmodifiableSet(versions);
+      this.snapshotTimestamp = snapshotTimestamp;
+      this.snapshotBuildNumber = snapshotBuildNumber;
+      this.fetchedAt = fetchedAt;
+    }
+
+    private boolean isFresh(long ttlMillis) {
+      return System.currentTimeMillis() - fetchedAt < ttlMillis;
+    }
+  }
+
+  /**
+   * @param cacheDir the directory to store parsed metadata in, may be null to only cache in memory
+   * @param ttl the duration metadata is reused for without asking the repo again. Zero always asks the repo.
+   */
+  public MavenMetaUtil(Path cacheDir, Duration ttl) {
+    diskCache = cacheDir;
+    ttlMillis = ttl.toMillis();
+  }
+
+  public boolean versionExists(String repoUrl, String group, String name, String version) throws IOException {
+    Metadata metadata = fetch(repoUrl + (repoUrl.endsWith("/") ? "" : "/") + group.replace('.', '/') + "/" + name + "/maven-metadata.xml");
+    if(metadata.versions == null) throw new IOException("maven-metadata.xml of " + group + ":" + name + " misses <versions> tag");
+    return metadata.versions.contains(version);
+  }
+
+  /**
+   * Fetches metadata, using cached data if it is younger than the configured time to live. If the repo can not be
+   * reached, stale data is used as fallback.
+   *
+   * @param url the url of the maven-metadata.xml file
+   * @return the parsed metadata
+   * @throws IOException if the metadata could neither be fetched nor found in any cache
+   */
+  public Metadata fetch(String url) throws IOException {
+    Metadata cached = MEMORY_CACHE.get(url);
+    Path diskFile = diskCache == null ? null : diskCache.resolve(Hashing.sha512Hex(url).substring(0, 32) + ".txt");
+    if(cached == null && diskFile != null && Files.isRegularFile(diskFile)) cached = readFromDisk(diskFile);
+    if(cached != null && cached.isFresh(ttlMillis)) {
+      MEMORY_CACHE.putIfAbsent(url, cached);
+      return cached;
+    }
+    Metadata fetched;
+    try(InputStream is = new URL(url).openStream()) {
+      fetched = parse(is, System.currentTimeMillis());
+    } catch(IOException e) {
+      if(cached == null) throw e;
+      return cached;
+    }
+    MEMORY_CACHE.put(url, fetched);
+    if(diskFile != null) writeToDisk(diskFile, fetched);
+    return fetched;
+  }
+
+  /**
+   * Parses a maven-metadata.xml file with a streaming parser.
+   *
+   * @param is the stream to read from
+   * @param fetchedAt the time the data was fetched
+   * @return the parsed metadata
+   * @throws IOException if the stream could not be read or does not contain valid xml
+   */
+  static Metadata parse(InputStream is, long fetchedAt) throws IOException {
+    String latest = null, release = null, timestamp = null, buildNumber = null;
+    Set<String> versions = null;
+    try {
+      XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(is);
+      try {
+        Deque<String> path = new ArrayDeque<>();
+        while(reader.hasNext()) {
+          int event = reader.next();
+          if(event == XMLStreamConstants.END_ELEMENT) path.pop();
+          if(event != XMLStreamConstants.START_ELEMENT) continue;
+          String tag = reader.getLocalName();
+          String parent = path.peek();
+          path.push(tag);
+          if("versioning".equals(parent)) {
+            if("latest".equals(tag)) latest = readText(reader, path);
+            else if("release".equals(tag)) release = readText(reader, path);
+            else if("versions".equals(tag)) versions = new HashSet<>();
+          } else if("versions".equals(parent) && "version".equals(tag) && versions != null)
+            versions.add(readText(reader, path));
+          else if("snapshot".equals(parent)) {
+            if("timestamp".equals(tag)) timestamp = readText(reader, path);
+            else if("buildNumber".equals(tag)) buildNumber = readText(reader, path);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch(XMLStreamException e) {
+      throw new IOException("Invalid content in maven-metadata.xml", e);
+    }
+    return new Metadata(latest, release, versions, timestamp, buildNumber, fetchedAt);
+  }
+
+  /** Reads the text of the current element, consuming its end tag */
+  private static String readText(XMLStreamReader reader, Deque<String> path) throws XMLStreamException {
+    path.pop();
+    return reader.getElementText().trim();
+  }
+
+  private static Metadata readFromDisk(Path file) {
+    try {
+      String latest = null, release = null, timestamp = null, buildNumber = null;
+      Set<String> versions = null;
+      long fetchedAt = 0;
+      for(String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+        int sep = line.indexOf(' ');
+        if(sep < 0) continue;
+        String value = line.substring(sep + 1);
+        switch(line.substring(0, sep)) {
+          case "fetchedAt": fetchedAt = Long.parseLong(value); break;
+          case "latest": latest = value; break;
+          case "release": release = value; break;
+          case "timestamp": timestamp = value; break;
+          case "buildNumber": buildNumber = value; break;
+          case "versions": versions = new HashSet<>(); break;
+          case "version": if(versions != null) versions.add(value); break;
+        }
+      }
+      return new Metadata(latest, release, versions, timestamp, buildNumber, fetchedAt);
+    } catch(IOException | NumberFormatException e) {
+      // A corrupt cache entry is simply fetched again
+      return null;
+    }
+  }
+
+  private static void writeToDisk(Path file, Metadata metadata) throws IOException {
+    List<String> lines = new ArrayList<>();
+    lines.add("fetchedAt " + metadata.fetchedAt);
+    if(metadata.latest != null) lines.add("latest " + metadata.latest);
+    if(metadata.release != null) lines.add("release " + metadata.release);
+    if(metadata.snapshotTimestamp != null) lines.add("timestamp " + metadata.snapshotTimestamp);
+    if(metadata.snapshotBuildNumber != null) lines.add("buildNumber " + metadata.snapshotBuildNumber);
+    if(metadata.versions != null) {
+      lines.add("versions ");
+      new TreeSet<>(metadata.versions).forEach(v -> lines.add("version " + v));
+    }
+    Files.createDirectories(file.getParent());
+    Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+    try {
+      Files.write(tmp, lines, StandardCharsets.UTF_8);
+      Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+}
@@ -4,23 +4,84 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.Comparator;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 public interface MinecraftVersion extends Comparable<MinecraftVersion> {
 
   static Comparator<Class<? extends MinecraftVersion>> COMPARATOR = (o1, o2) -> o1.equals(DatedVersion.class) ? o2.equals(DatedVersion.class) ? 0 : 1 : o2.equals(DatedVersion.class) ? -1 : 0;
 
+  /**
+   * The key of versions whose components don't fit into a long. These are compared component by component.
+   */
+  long UNKNOWN_KEY = -1;
+
+  /**
+   * Returns the version of a version string. Versions are parsed once and interned, so repeated lookups of the same
+   * string are a map lookup and return the same instance.
+   *
+   * @param versionString the version string, e.g. {@code c0.0.22a} or {@code in-20100104-2258}
+   * @return the parsed version
+   * @throws IllegalArgumentException if the string is not a valid version
+   */
   static MinecraftVersion of(String versionString) {
+    return Registry.VERSIONS.computeIfAbsent(versionString, MinecraftVersion::parse);
+  }
+
+  private static MinecraftVersion parse(String versionString) {
     if(versionString.startsWith("in")) return new DatedVersion(versionString);
     if(versionString.startsWith("c")) return new ClassicVersion(versionString);
     throw new IllegalArgumentException("Invalid version String '" + versionString + "'");
   }
 
+  /**
+   * Returns a key ordering this version among all others. Keys are computed on creation: the phase, then the version
+   * number or date, then up to 5 characters of the revision. If two versions both have a key, they compare exactly like
+   * their keys.
+   *
+   * @return the key, or {@link #UNKNOWN_KEY} if a component of this version does not fit
+   */
+  long key();
+
+  /**
+   * Packs phase, primary component and revision into a key.
+   *
+   * @param phase 0 for classic, 1 for indev, 2 for infdev
+   * @param primary the version number or date, must fit into 24 bits
+   * @param revision the revision, may be null
+   * @return the key, or {@link #UNKNOWN_KEY} if primary or revision don't fit
+   */
+  private static long packKey(int phase, int primary, @Nullable String revision) {
+    if(primary < 0 || primary >= 1 << 24) return UNKNOWN_KEY;
+    long rev = 0;
+    if(revision != null) {
+      if(revision.length() > 5) return UNKNOWN_KEY;
+      // A present revision sorts after a missing one, a shorter one before all it prefixes
+      rev = 1;
+      for(int i = 0; i < 5; i++) {
+        char c = i < revision.length() ? revision.charAt(i) : 0;
+        if(c > 127 || (c == 0 && i < revision.length())) return UNKNOWN_KEY;
+        rev = rev << 7 | c;
+      }
+    }
+    return (long) phase << 60 | (long) primary << 36 | rev;
+  }
+
+  /**
+   * Holds the interned versions.
+   */
+  final class Registry {
+    private static final Map<String, MinecraftVersion> VERSIONS = new ConcurrentHashMap<>();
+
+    private Registry() {}
+  }
+
   static final class ClassicVersion implements MinecraftVersion {
     private final int major;
     private final int minor;
     private final @Nullable String revision;
-
+    private final long key;
 
     private ClassicVersion(@NotNull String versionString) {
       if(versionString.length() < 5) throw new IllegalArgumentException("Invalid version String '" + versionString + "'");
@@ -61,10 +122,17 @@ public interface MinecraftVersion extends Comparable<MinecraftVersion> {
       }
       int suffixIndex = split[split.length - 1].indexOf('_');
       revision = suffixIndex < 0 ? null : split[split.length - 1].substring(suffixIndex + 1);
+      key = major < 256 && minor < 256 ? packKey(0, major << 8 | minor, revision) : UNKNOWN_KEY;
+    }
+
+    @Override
+    public long key() {
+      return key;
     }
 
     @Override
     public int compareTo(@NotNull MinecraftVersion o) {
+      if(key != UNKNOWN_KEY && o.key() != UNKNOWN_KEY) return Long.compare(key, o.key());
       int phaseComparison = COMPARATOR.compare(this.getClass(), o.getClass());
       if(phaseComparison != 0) return phaseComparison;
       ClassicVersion v = (ClassicVersion) o;
@@ -96,6 +164,7 @@ public interface MinecraftVersion extends Comparable<MinecraftVersion> {
     private final boolean indev;
     private final @NotNull String date;
     private final @Nullable String revision;
+    private final long key;
 
     private DatedVersion(@NotNull String versionString) {
       String[] parts = versionString.split("-", 3);
@@ -104,10 +173,31 @@ public interface MinecraftVersion extends Comparable<MinecraftVersion> {
       if(!indev && !"inf".equals(parts[0])) throw new IllegalArgumentException("Invalid version String '" + versionString + "'");
       this.date = parts[1];
       this.revision = parts.length == 3 ? parts[2] : null;
+      this.key = packKey(indev ? 1 : 2, dateKey(date), revision);
+    }
+
+    /**
+     * Maps yyyyMMdd dates to an int with the same order. As the order of the date strings must be kept, only dates of
+     * exactly 8 digits with valid months and days can be mapped.
+     *
+     * @return the mapped date or -1 if it can't be mapped
+     */
+    private static int dateKey(String date) {
+      if(date.length() != 8) return -1;
+      for(int i = 0; i < 8; i++) if(date.charAt(i) < '0' || date.charAt(i) > '9') return -1;
+      int year = Integer.parseInt(date.substring(0, 4)), month = Integer.parseInt(date.substring(4, 6)), day = Integer.parseInt(date.substring(6));
+      if(month < 1 || month > 12 || day < 1 || day > 31) return -1;
+      return (year * 13 + month) * 32 + day;
+    }
+
+    @Override
+    public long key() {
+      return key;
     }
 
     @Override
     public int compareTo(@NotNull MinecraftVersion o) {
+      if(key != UNKNOWN_KEY && o.key() != UNKNOWN_KEY) return Long.compare(key, o.key());
       int phaseComparison = COMPARATOR.compare(this.getClass(), o.getClass());
       if(phaseComparison != 0) return phaseComparison;
       DatedVersion v = (DatedVersion) o;
@@ -0,0 +1,190 @@
+package de.heisluft.modding.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Copies entries from one zip file to another without inflating or recompressing them. Local headers, data and data
+ * descriptors are transferred verbatim, only the central directory is rewritten. Entries are written in the order
+ * of the input central directory, so the output only depends on the input and the filter.
+ * <p>
+ * Jars written by external tools can also be normalized: entries are sorted by name and timestamps, extra fields and
+ * comments are dropped, so that equal contents always yield byte-identical jars.
+ */
+public final class RawZipCopier {
+  private static final int LOC_SIG = 0x04034b50, CEN_SIG = 0x02014b50, END_SIG = 0x06054b50, EXT_SIG = 0x08074b50;
+  private static final int LOC_HDR = 30, CEN_HDR = 46, END_HDR = 22;
+  /** The timestamp of normalized entries, 1980-02-01 00:00 in MS-DOS format, the same one Gradle uses for archives */
+  private static final short DOS_TIME = 0, DOS_DATE = (2 << 5) | 1;
+
+  private RawZipCopier() {}
+
+  /**
+   * Copies all file entries whose name matches filter from in to out. Directory entries are kept if they match or
+   * if they contain a copied file.
+   *
+   * @param in the zip to read from
+   * @param out the zip to write, it is replaced if it exists
+   * @param filter the filter to test entry names against
+   * @return the number of entries written
+   * @throws IOException if in could not be read, is malformed or uses zip64 extensions, or if out could not be written
+   */
+  public static int copy(Path in, Path out, Predicate<String> filter) throws IOException {
+    return copy(in, out, filter, false);
+  }
+
+  /**
+   * Copies all entries from in to out, sorted by name and without timestamps, extra fields and comments. Entry data
+   * is still transferred without recompressing it.
+   *
+   * @param in the zip to read from
+   * @param out the zip to write, it is replaced if it exists
+   * @throws IOException if in could not be read, is malformed or uses zip64 extensions, or if out could not be written
+   */
+  public static void normalize(Path in, Path out) throws IOException {
+    copy(in, out, name -> true, true);
+  }
+
+  private static int copy(Path in, Path out, Predicate<String> filter, boolean normalize) throws IOException {
+    try(FileChannel src = FileChannel.open(in, StandardOpenOption.READ);
+        FileChannel dst = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      ByteBuffer end = findEnd(src);
+      int count = Short.toUnsignedInt(end.getShort(10));
+      long cenSize = Integer.toUnsignedLong(end.getInt(12)), cenOff = Integer.toUnsignedLong(end.getInt(16));
+      if(count == 0xFFFF || cenSize == 0xFFFFFFFFL || cenOff == 0xFFFFFFFFL) throw new IOException("Zip64 archives are not supported: " + in);
+      ByteBuffer cen = read(src, cenOff, (int) cenSize);
+
+      List<Integer> records = new ArrayList<>(count);
+      List<String> names = new ArrayList<>(count);
+      Set<String> keptDirs = new HashSet<>();
+      boolean[] kept = new boolean[count];
+      for(int i = 0, pos = 0; i < count; i++) {
+        if(cen.getInt(pos) != CEN_SIG) throw new IOException("Malformed central directory in " + in);
+        int nameLen = Short.toUnsignedInt(cen.getShort(pos + 28));
+        byte[] nameBytes = new byte[nameLen];
+        cen.position(pos + CEN_HDR);
+        cen.get(nameBytes);
+        String name = new String(nameBytes, StandardCharsets.UTF_8);
+        records.add(pos);
+        names.add(name);
+        if(!name.endsWith("/") && filter.test(name)) {
+          kept[i] = true;
+          for(int slash = name.lastIndexOf('/'); slash > 0; slash = name.lastIndexOf('/', slash - 1))
+            if(!keptDirs.add(name.substring(0, slash + 1))) break;
+        }
+        pos += CEN_HDR + nameLen + Short.toUnsignedInt(cen.getShort(pos + 30)) + Short.toUnsignedInt(cen.getShort(pos + 32));
+      }
+
+      ByteBuffer newCen = ByteBuffer.allocate((int) cenSize).order(ByteOrder.LITTLE_ENDIAN);
+      ByteBuffer locHeader = ByteBuffer.allocate(LOC_HDR).order(ByteOrder.LITTLE_ENDIAN);
+      ByteBuffer descriptorSig = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+      long written = 0;
+      int copied = 0;
+      List<Integer> order = IntStream.range(0, count).boxed().collect(Collectors.toList());
+      if(normalize) order.sort(Comparator.comparing(names::get));
+      for(int i : order) {
+        String name = names.get(i);
+        if(!kept[i] && !(name.endsWith("/") && (keptDirs.contains(name) || filter.test(name)))) continue;
+        int pos = records.get(i);
+        long locOff = Integer.toUnsignedLong(cen.getInt(pos + 42));
+        long compSize = Integer.toUnsignedLong(cen.getInt(pos + 20));
+        locHeader.clear();
+        readFully(src, locHeader, locOff);
+        if(locHeader.getInt(0) != LOC_SIG) throw new IOException("Malformed local header for entry " + name + " in " + in);
+        int locNameLen = Short.toUnsignedInt(locHeader.getShort(26));
+        long dataOff = locOff + LOC_HDR + locNameLen + Short.toUnsignedInt(locHeader.getShort(28));
+        long dataLen = compSize;
+        // General purpose flag bit 3: sizes follow the data in a descriptor, which may or may not be signed
+        if((cen.getShort(pos + 8) & 8) != 0) {
+          descriptorSig.clear();
+          readFully(src, descriptorSig, dataOff + compSize);
+          dataLen += descriptorSig.getInt(0) == EXT_SIG ? 16 : 12;
+        }
+        long length;
+        if(normalize) {
+          locHeader.putShort(10, DOS_TIME).putShort(12, DOS_DATE).putShort(28, (short) 0);
+          while(locHeader.hasRemaining()) dst.write(locHeader);
+          transferFully(src, locOff + LOC_HDR, locNameLen, dst);
+          transferFully(src, dataOff, dataLen, dst);
+          length = LOC_HDR + locNameLen + dataLen;
+        } else {
+          length = dataOff - locOff + dataLen;
+          transferFully(src, locOff, length, dst);
+        }
+
+        int nameLen = Short.toUnsignedInt(cen.getShort(pos + 28));
+        int recordLen = normalize ? CEN_HDR + nameLen :
+            CEN_HDR + nameLen + Short.toUnsignedInt(cen.getShort(pos + 30)) + Short.toUnsignedInt(cen.getShort(pos + 32));
+        int recordStart = newCen.position();
+        newCen.put(cen.array(), pos, recordLen);
+        newCen.putInt(recordStart + 42, (int) written);
+        if(normalize) newCen.putShort(recordStart + 12, DOS_TIME).putShort(recordStart + 14, DOS_DATE)
+            .putShort(recordStart + 30, (short) 0).putShort(recordStart + 32, (short) 0);
+        written += length;
+        copied++;
+      }
+
+      newCen.flip();
+      int newCenSize = newCen.remaining();
+      int commentLen = normalize ? 0 : Short.toUnsignedInt(end.getShort(20));
+      ByteBuffer newEnd = ByteBuffer.allocate(END_HDR + commentLen).order(ByteOrder.LITTLE_ENDIAN);
+      newEnd.putInt(END_SIG).putShort((short) 0).putShort((short) 0).putShort((short) copied).putShort((short) copied)
+          .putInt(newCenSize).putInt((int) written).putShort((short) commentLen);
+      newEnd.put(end.array(), END_HDR, commentLen).flip();
+      while(newCen.hasRemaining()) dst.write(newCen);
+      while(newEnd.hasRemaining()) dst.write(newEnd);
+      return copied;
+    }
+  }
+
+  private static ByteBuffer findEnd(FileChannel src) throws IOException {
+    long size = src.size();
+    if(size < END_HDR) throw new IOException("Not a zip file");
+    int tailLen = (int) Math.min(size, END_HDR + 0xFFFF);
+    ByteBuffer tail = read(src, size - tailLen, tailLen);
+    for(int pos = tailLen - END_HDR; pos >= 0; pos--) {
+      if(tail.getInt(pos) != END_SIG || pos + END_HDR + Short.toUnsignedInt(tail.getShort(pos + 20)) != tailLen) continue;
+      ByteBuffer end = ByteBuffer.allocate(tailLen - pos).order(ByteOrder.LITTLE_ENDIAN);
+      end.put(tail.array(), pos, tailLen - pos).clear();
+      return end;
+    }
+    throw new IOException("Could not find the end of central directory record");
+  }
+
+  private static ByteBuffer read(FileChannel src, long pos, int len) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(src, buf, pos);
+    return buf;
+  }
+
+  private static void readFully(FileChannel src, ByteBuffer buf, long pos) throws IOException {
+    while(buf.hasRemaining()) {
+      int read = src.read(buf, pos);
+      if(read < 0) throw new IOException("Unexpected end of zip file");
+      pos += read;
+    }
+    buf.clear();
+  }
+
+  private static void transferFully(FileChannel src, long pos, long len, FileChannel dst) throws IOException {
+    while(len > 0) {
+      long transferred = src.transferTo(pos, len, dst);
+      if(transferred <= 0) throw new IOException("Unexpected end of zip file");
+      pos += transferred;
+      len -= transferred;
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package de.heisluft.modding.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Reads and writes simple key-value state files used by tasks to remember what they produced in previous runs.
+ * Each line holds a key and its value, separated by a tab. Keys must not contain tabs or line breaks.
+ */
+public final class StateFile {
+
+  private StateFile() {}
+
+  /**
+   * Reads a state file.
+   *
+   * @param file the file to read
+   * @return the read mappings, or an empty map if the file does not exist
+   * @throws IOException if the file could not be read
+   */
+  public static Map<String, String> read(Path file) throws IOException {
+    Map<String, String> result = new HashMap<>();
+    if(!Files.isRegularFile(file)) return result;
+    for(String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+      int tab = line.indexOf('\t');
+      if(tab < 0) continue;
+      result.put(line.substring(0, tab), line.substring(tab + 1));
+    }
+    return result;
+  }
+
+  /**
+   * Writes a state file, sorted by key.
+   *
+   * @param file the file to write
+   * @param state the mappings to write
+   * @throws IOException if the file could not be written
+   */
+  public static void write(Path file, Map<String, String> state) throws IOException {
+    Files.createDirectories(file.getParent());
+    try(BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      for(Map.Entry<String, String> entry : new TreeMap<>(state).entrySet()) {
+        writer.write(entry.getKey());
+        writer.write('\t');
+        writer.write(entry.getValue());
+        writer.write('\n');
+      }
+    }
+  }
+
+  /**
+   * Records a stamp of the files within dir, made up of their relative paths, sizes and modification times.
+   *
+   * @param stampFile the file to write the stamp to
+   * @param dir the directory to stamp
+   * @throws IOException if dir could not be read or the stamp could not be written
+   */
+  public static void writeStamp(Path stampFile, Path dir) throws IOException {
+    Files.createDirectories(stampFile.getParent());
+    Files.write(stampFile, stampOf(dir).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Checks whether the files within dir still match a stamp written by {@link #writeStamp(Path, Path)}. If they don't,
+   * they were replaced since, e.g. by Gradle restoring them from the build cache, and state recorded along with the
+   * stamp no longer describes them.
+   *
+   * @param stampFile the file the stamp was written to
+   * @param dir the directory to check
+   * @return false if there is no stamp or it does not match
+   * @throws IOException if dir or the stamp could not be read
+   */
+  public static boolean matchesStamp(Path stampFile, Path dir) throws IOException {
+    if(!Files.isRegularFile(stampFile)) return false;
+    return new String(Files.readAllBytes(stampFile), StandardCharsets.UTF_8).equals(stampOf(dir));
+  }
+
+  private static String stampOf(Path dir) throws IOException {
+    if(!Files.isDirectory(dir)) return "";
+    StringBuilder builder = new StringBuilder();
+    List<Path> files;
+    try(Stream<Path> s = Files.walk(dir)) {
+      files = s.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+    }
+    for(Path file : files) {
+      BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+      builder.append(dir.relativize(file)).append(' ').append(attributes.size()).append(' ')
+          .append(attributes.lastModifiedTime().toMillis()).append('\n');
+    }
+    return Hashing.sha512Hex(builder.toString());
+  }
+}
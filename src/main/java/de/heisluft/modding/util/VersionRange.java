@@ -0,0 +1,48 @@
+package de.heisluft.modding.util;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A range of minecraft versions, written as {@code from..to} (both inclusive) or {@code from..<to} (excluding to).
+ * Either bound may be omitted, e.g. {@code in-20100104..} matches that version and all later ones.
+ */
+public final class VersionRange {
+  private final @Nullable MinecraftVersion from, to;
+  private final boolean toInclusive;
+  private final String range;
+
+  private VersionRange(@Nullable MinecraftVersion from, @Nullable MinecraftVersion to, boolean toInclusive, String range) {
+    this.range = range;
+    this.from = from;
+    this.to = to;
+    this.toInclusive = toInclusive;
+  }
+
+  /**
+   * Parses a range.
+   *
+   * @param range the range to parse
+   * @return the parsed range
+   * @throws IllegalArgumentException if the range is malformed or contains an invalid version
+   */
+  public static VersionRange parse(String range) {
+    int sep = range.indexOf("..");
+    if(sep < 0) throw new IllegalArgumentException("Invalid version range '" + range + "'");
+    boolean exclusive = range.startsWith("<", sep + 2);
+    String from = range.substring(0, sep).trim(), to = range.substring(sep + (exclusive ? 3 : 2)).trim();
+    if(exclusive && to.isEmpty()) throw new IllegalArgumentException("Invalid version range '" + range + "'");
+    return new VersionRange(from.isEmpty() ? null : MinecraftVersion.of(from), to.isEmpty() ? null : MinecraftVersion.of(to), !exclusive, range);
+  }
+
+  public boolean contains(MinecraftVersion version) {
+    if(from != null && version.compareTo(from) < 0) return false;
+    if(to == null) return true;
+    int c = version.compareTo(to);
+    return toInclusive ? c <= 0 : c < 0;
+  }
+
+  @Override
+  public String toString() {
+    return range;
+  }
+}
@@ -0,0 +1,51 @@
+package de.heisluft.modding.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A table mapping version ranges to values, e.g. the dependencies a range of versions needs. Ranges are parsed once
+ * when the table is built, so a lookup is a couple of key comparisons per rule.
+ *
+ * @param <T> the type of values
+ */
+public final class VersionRules<T> {
+  private final List<VersionRange> ranges = new ArrayList<>();
+  private final List<T> values = new ArrayList<>();
+
+  /**
+   * Adds a rule.
+   *
+   * @param range the range of versions the value applies to, see {@link VersionRange}
+   * @param value the value
+   * @return this table
+   */
+  public VersionRules<T> add(String range, T value) {
+    ranges.add(VersionRange.parse(range));
+    values.add(value);
+    return this;
+  }
+
+  /**
+   * Looks up the values of all rules matching a version.
+   *
+   * @param version the version to look up
+   * @return the values in the order their rules were added, empty if no rule matches
+   */
+  public List<T> lookup(MinecraftVersion version) {
+    List<T> result = new ArrayList<>();
+    for(int i = 0; i < ranges.size(); i++) if(ranges.get(i).contains(version)) result.add(values.get(i));
+    return result;
+  }
+
+  /**
+   * Looks up the values of all rules matching a version.
+   *
+   * @param version the version string to look up
+   * @return the values in the order their rules were added, empty if no rule matches
+   * @throws IllegalArgumentException if the version string is invalid
+   */
+  public List<T> lookup(String version) {
+    return lookup(MinecraftVersion.of(version));
+  }
+}
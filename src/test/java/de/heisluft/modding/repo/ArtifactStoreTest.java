@@ -0,0 +1,74 @@
+package de.heisluft.modding.repo;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ArtifactStoreTest {
+  private static final String ARTIFACT = "de/heisluft/test/1.0/test-1.0.jar";
+
+  @TempDir
+  Path storeDir;
+
+  @Test
+  void revalidatesWithoutTransferringUnchangedArtifacts() throws Exception {
+    try(TestRepoServer server = new TestRepoServer()) {
+      server.put(ARTIFACT, bytes("first"), "\"v1\"");
+      ArtifactStore store = new ArtifactStore(storeDir);
+
+      Path stored = store.fetch(server.baseUrl(), ARTIFACT);
+      assertEquals("first", read(stored));
+      assertEquals(1, server.count("GET", ARTIFACT));
+
+      // The repo answers the conditional request with 304, the artifact must not be transferred again
+      assertEquals(stored, store.fetch(server.baseUrl(), ARTIFACT));
+      assertEquals("first", read(stored));
+      assertEquals(1, server.count("GET", ARTIFACT));
+      assertEquals(2, server.count("HEAD", ARTIFACT));
+    }
+  }
+
+  @Test
+  void transfersRepublishedArtifacts() throws Exception {
+    try(TestRepoServer server = new TestRepoServer()) {
+      server.put(ARTIFACT, bytes("first"), "\"v1\"");
+      ArtifactStore store = new ArtifactStore(storeDir);
+      Path stored = store.fetch(server.baseUrl(), ARTIFACT);
+
+      // A new ETag makes the repo answer the conditional request with 200
+      server.put(ARTIFACT, bytes("second"), "\"v2\"");
+      assertEquals(stored, store.fetch(server.baseUrl(), ARTIFACT));
+      assertEquals("second", read(stored));
+      assertEquals(2, server.count("GET", ARTIFACT));
+
+      assertEquals(stored, store.fetch(server.baseUrl(), ARTIFACT));
+      assertEquals(2, server.count("GET", ARTIFACT));
+    }
+  }
+
+  @Test
+  void usesStoredCopyIfRepoIsUnreachable() throws Exception {
+    String baseUrl;
+    Path stored;
+    try(TestRepoServer server = new TestRepoServer()) {
+      server.put(ARTIFACT, bytes("first"), "\"v1\"");
+      baseUrl = server.baseUrl();
+      stored = new ArtifactStore(storeDir).fetch(baseUrl, ARTIFACT);
+    }
+    assertEquals(stored, new ArtifactStore(storeDir).fetch(baseUrl, ARTIFACT));
+    assertEquals("first", read(stored));
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String read(Path file) throws Exception {
+    return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,152 @@
+package de.heisluft.modding.repo;
+
+import de.heisluft.modding.util.Hashing;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DownloaderTest {
+  private static final String FILE = "file.jar";
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void resumesAfterTruncatedBody() throws Exception {
+    byte[] content = randomBytes(200_000);
+    Path target = dir.resolve(FILE);
+    try(TestRepoServer server = new TestRepoServer()) {
+      server.put(FILE, content, "\"v1\"");
+      server.truncateNext(1, 80_000);
+      assertThrows(IOException.class, () -> Downloader.download(server.url(FILE), target, 1, null));
+      assertFalse(Files.exists(target));
+      long partSize = Files.size(dir.resolve(FILE + ".part"));
+      assertTrue(partSize > 0 && partSize < content.length);
+
+      Downloader.download(server.url(FILE), target, 1, Hashing.sha512Hex(content));
+      assertArrayEquals(content, Files.readAllBytes(target));
+      assertEquals("GET /" + FILE + " bytes=" + partSize + "-", last(server.requests()));
+      assertFalse(Files.exists(dir.resolve(FILE + ".part")));
+    }
+  }
+
+  @Test
+  void restartsIfFileWasRepublished() throws Exception {
+    Path target = dir.resolve(FILE);
+    try(TestRepoServer server = new TestRepoServer()) {
+      server.put(FILE, randomBytes(200_000), "\"v1\"");
+      server.truncateNext(1, 80_000);
+      assertThrows(IOException.class, () -> Downloader.download(server.url(FILE), target, 1, null));
+
+      // The server ignores the range as If-Range no longer matches, the old bytes must not be kept
+      byte[] republished = randomBytes(150_000);
+      server.put(FILE, republished, "\"v2\"");
+      Downloader.download(server.url(FILE), target, 1, null);
+      assertArrayEquals(republished, Files.readAllBytes(target));
+    }
+  }
+
+  @Test
+  void restartsIfRangesAreNotSupported() throws Exception {
+    byte[] content = randomBytes(200_000);
+    Path target = dir.resolve(FILE);
+    try(TestRepoServer server = new TestRepoServer()) {
+      server.setRangesSupported(false);
+      server.put(FILE, content, "\"v1\"");
+      server.truncateNext(1, 80_000);
+      assertThrows(IOException.class, () -> Downloader.download(server.url(FILE), target, 1, null));
+
+      // The server answers the range request with the whole file, it must not be appended to the partial one
+      Downloader.download(server.url(FILE), target, 1, Hashing.sha512Hex(content));
+      assertArrayEquals(content, Files.readAllBytes(target));
+      assertEquals(2, server.count("GET", FILE));
+    }
+  }
+
+  @Test
+  void completesFromFullPartialFile() throws Exception {
+    byte[] content = randomBytes(50_000);
+    Path target = dir.resolve(FILE);
+    // An earlier download got every byte, but was interrupted before moving the file
+    Files.write(dir.resolve(FILE + ".part"), content);
+    Files.write(dir.resolve(FILE + ".part.validator"), "\"v1\"".getBytes(StandardCharsets.UTF_8));
+    try(TestRepoServer server = new TestRepoServer()) {
+      server.put(FILE, content, "\"v1\"");
+      Downloader.download(server.url(FILE), target, 1, Hashing.sha512Hex(content));
+      assertArrayEquals(content, Files.readAllBytes(target));
+      // Answered with 416, nothing was transferred
+      assertEquals(List.of("GET /" + FILE + " bytes=" + content.length + "-"), server.requests());
+    }
+  }
+
+  @Test
+  void reusesSegmentState() throws Exception {
+    int segments = 4;
+    byte[] content = randomBytes(5 << 20);
+    Path target = dir.resolve(FILE);
+    try(TestRepoServer server = new TestRepoServer()) {
+      server.put(FILE, content, "\"v1\"");
+      server.truncateNext(segments, 300_000);
+      assertThrows(IOException.class, () -> Downloader.download(server.url(FILE), target, segments, null));
+      assertTrue(Files.exists(dir.resolve(FILE + ".part.state")));
+      int firstAttempt = server.requests().size();
+
+      Downloader.download(server.url(FILE), target, segments, Hashing.sha512Hex(content));
+      assertArrayEquals(content, Files.readAllBytes(target));
+      assertFalse(Files.exists(dir.resolve(FILE + ".part.state")));
+      List<String> requests = server.requests();
+      List<String> resumed = requests.subList(firstAttempt, requests.size()).stream()
+          .filter(r -> r.startsWith("GET")).collect(Collectors.toList());
+      assertEquals(segments, resumed.size());
+      long segmentSize = (content.length + segments - 1) / segments;
+      for(String request : resumed) {
+        long start = Long.parseLong(request.substring(request.indexOf('=') + 1, request.indexOf('-', request.indexOf('='))));
+        assertNotEquals(0, start % segmentSize, "segment restarted from scratch: " + request);
+      }
+    }
+  }
+
+  @Test
+  void serializesConcurrentDownloads() throws Exception {
+    byte[] content = randomBytes(200_000);
+    Path target = dir.resolve(FILE);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try(TestRepoServer server = new TestRepoServer()) {
+      server.put(FILE, content, "\"v1\"");
+      Callable<Void> download = () -> {
+        Downloader.download(server.url(FILE), target, 1, Hashing.sha512Hex(content));
+        return null;
+      };
+      List<Future<Void>> futures = executor.invokeAll(List.of(download, download, download, download));
+      for(Future<Void> future : futures) future.get();
+      assertArrayEquals(content, Files.readAllBytes(target));
+      // Everyone after the first finds the verified target once they hold the lock
+      assertEquals(1, server.count("GET", FILE));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static String last(List<String> list) {
+    return list.get(list.size() - 1);
+  }
+}
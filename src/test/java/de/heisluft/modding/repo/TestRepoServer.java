@@ -0,0 +1,143 @@
+package de.heisluft.modding.repo;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal HTTP server for testing downloads, serving in-memory files with ETag and Last-Modified headers. Supports
+ * HEAD, conditional requests via If-None-Match, single range requests, If-Range and cutting off response bodies.
+ */
+final class TestRepoServer implements AutoCloseable {
+  private static final String LAST_MODIFIED = "Mon, 05 Oct 2026 10:00:00 GMT";
+
+  private final HttpServer server;
+  private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+  private final Map<String, String> etags = new ConcurrentHashMap<>();
+  private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+  private final AtomicInteger truncateResponses = new AtomicInteger();
+  private volatile long truncateAfter;
+  private volatile boolean rangesSupported = true;
+
+  TestRepoServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", this::handle);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+  }
+
+  /**
+   * Serves content at path with the given ETag.
+   */
+  void put(String path, byte[] content, String etag) {
+    files.put(path, content);
+    etags.put(path, etag);
+  }
+
+  /**
+   * Makes the next count responses with a body end after the given number of bytes, as if the connection broke.
+   */
+  void truncateNext(int count, long afterBytes) {
+    truncateAfter = afterBytes;
+    truncateResponses.set(count);
+  }
+
+  /**
+   * Makes the server ignore Range headers and stop advertising Accept-Ranges, answering with the whole file instead.
+   */
+  void setRangesSupported(boolean rangesSupported) {
+    this.rangesSupported = rangesSupported;
+  }
+
+  String baseUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+  }
+
+  URL url(String path) throws IOException {
+    return new URL(baseUrl() + path);
+  }
+
+  /**
+   * @return all requests received so far, as method, path and Range header if present, e.g. {@code GET /a.jar bytes=5-}
+   */
+  List<String> requests() {
+    synchronized(requests) {
+      return new ArrayList<>(requests);
+    }
+  }
+
+  /**
+   * @return the number of requests with the given method for the given path
+   */
+  long count(String method, String path) {
+    return requests().stream().map(r -> r.split(" ")).filter(r -> r[0].equals(method) && r[1].equals("/" + path)).count();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getPath().substring(1);
+    String method = exchange.getRequestMethod();
+    String range = exchange.getRequestHeaders().getFirst("Range");
+    requests.add(method + " /" + path + (range == null ? "" : " " + range));
+    try {
+      byte[] content = files.get(path);
+      if(content == null) {
+        exchange.sendResponseHeaders(404, -1);
+        return;
+      }
+      String etag = etags.get(path);
+      exchange.getResponseHeaders().set("ETag", etag);
+      exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+      if(rangesSupported) exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+      if(etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+        exchange.sendResponseHeaders(304, -1);
+        return;
+      }
+      String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+      boolean honorRange = rangesSupported && range != null && (ifRange == null || ifRange.equals(etag));
+      long start = 0, end = content.length - 1;
+      int code = 200;
+      if(honorRange) {
+        String[] bounds = range.substring("bytes=".length()).split("-", -1);
+        start = Long.parseLong(bounds[0]);
+        if(!bounds[1].isEmpty()) end = Math.min(end, Long.parseLong(bounds[1]));
+        if(start >= content.length) {
+          exchange.getResponseHeaders().set("Content-Range", "bytes */" + content.length);
+          exchange.sendResponseHeaders(416, -1);
+          return;
+        }
+        exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+        code = 206;
+      }
+      long length = end - start + 1;
+      if("HEAD".equals(method)) {
+        exchange.getResponseHeaders().set("Content-Length", String.valueOf(length));
+        exchange.sendResponseHeaders(code, -1);
+        return;
+      }
+      exchange.sendResponseHeaders(code, length);
+      long send = truncateResponses.getAndUpdate(c -> Math.max(0, c - 1)) > 0 ? Math.min(length, truncateAfter) : length;
+      try(OutputStream os = exchange.getResponseBody()) {
+        os.write(content, (int) start, (int) send);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+  }
+}
@@ -0,0 +1,186 @@
+package de.heisluft.modding.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryMappingsTest {
+  @TempDir
+  Path dir;
+
+  @Test
+  void readsBothLineForms() throws Exception {
+    BinaryMappings mappings = compile(
+        "# comment",
+        "",
+        "CL: a Foo",
+        "CL: b Bar",
+        "FD: a c count",
+        "FD: b/d Bar/name",
+        "MD: a e (La;)V setParent",
+        "MD: b/f (I)Lb; Bar/get (I)LBar;",
+        "PA: a e (La;)V 0 parent",
+        "EX: a e (La;)V java/io/IOException"
+    );
+    assertEquals(2, mappings.classCount());
+    assertEquals(2, mappings.fieldCount());
+    assertEquals(2, mappings.methodCount());
+    assertEquals("Foo", mappings.mapClass("a"));
+    assertEquals("Bar", mappings.mapClass("b"));
+    assertEquals("count", mappings.mapField("a", "c"));
+    assertEquals("name", mappings.mapField("b", "d"));
+    assertEquals("setParent", mappings.mapMethod("a", "e", "(La;)V"));
+    assertEquals("get", mappings.mapMethod("b", "f", "(I)Lb;"));
+
+    assertNull(mappings.mapClass("c"));
+    assertNull(mappings.mapClass("Foo"));
+    assertNull(mappings.mapField("b", "c"));
+    assertNull(mappings.mapField("a", "d"));
+    assertNull(mappings.mapMethod("a", "e", "(Lb;)V"));
+    assertNull(mappings.mapMethod("b", "e", "(La;)V"));
+    assertNull(mappings.mapMethod("a", "f", "(I)Lb;"));
+  }
+
+  @Test
+  void laterDuplicatesWin() throws Exception {
+    BinaryMappings mappings = compile(
+        "CL: a First",
+        "FD: a b first",
+        "MD: a c ()V first",
+        "CL: a Second",
+        "FD: a/b Second/second",
+        "MD: a/c ()V Second/second ()V",
+        "MD: a c (I)V overload"
+    );
+    assertEquals(1, mappings.classCount());
+    assertEquals(1, mappings.fieldCount());
+    assertEquals(2, mappings.methodCount());
+    assertEquals("Second", mappings.mapClass("a"));
+    assertEquals("second", mappings.mapField("a", "b"));
+    assertEquals("second", mappings.mapMethod("a", "c", "()V"));
+    assertEquals("overload", mappings.mapMethod("a", "c", "(I)V"));
+  }
+
+  @Test
+  void comparesKeysWithEqualHashes() throws Exception {
+    String[] colliding = findCollision();
+    assertNotEquals(colliding[0], colliding[1]);
+    // Keys of fields and methods collide too if their owners do, as the hash state is equal after the owner
+    BinaryMappings mappings = compile("CL: " + colliding[0] + " First", "FD: " + colliding[0] + " a first");
+    assertEquals("First", mappings.mapClass(colliding[0]));
+    assertNull(mappings.mapClass(colliding[1]));
+    assertEquals("first", mappings.mapField(colliding[0], "a"));
+    assertNull(mappings.mapField(colliding[1], "a"));
+
+    mappings = compile(
+        "CL: " + colliding[0] + " First",
+        "CL: " + colliding[1] + " Second",
+        "MD: " + colliding[0] + " a ()V first",
+        "MD: " + colliding[1] + " a ()V second"
+    );
+    assertEquals("First", mappings.mapClass(colliding[0]));
+    assertEquals("Second", mappings.mapClass(colliding[1]));
+    assertEquals("first", mappings.mapMethod(colliding[0], "a", "()V"));
+    assertEquals("second", mappings.mapMethod(colliding[1], "a", "()V"));
+  }
+
+  @Test
+  void agreesWithTextForManyEntries() throws Exception {
+    Random random = new Random(4711);
+    StringBuilder text = new StringBuilder();
+    Map<String, String> classes = new HashMap<>(), fields = new HashMap<>(), methods = new HashMap<>();
+    for(int i = 0; i < 3000; i++) {
+      String owner = randomName(random), mapped = "net/minecraft/C" + i;
+      text.append("CL: ").append(owner).append(' ').append(mapped).append('\n');
+      classes.put(owner, mapped);
+      for(int j = 0; j < 3; j++) {
+        String field = randomName(random), method = randomName(random), desc = "(" + (j == 0 ? "" : "L" + owner + ";") + ")V";
+        if(random.nextBoolean()) text.append("FD: ").append(owner).append(' ').append(field).append(" f").append(i).append('_').append(j).append('\n');
+        else text.append("FD: ").append(owner).append('/').append(field).append(' ').append(mapped).append("/f").append(i).append('_').append(j).append('\n');
+        if(random.nextBoolean()) text.append("MD: ").append(owner).append(' ').append(method).append(' ').append(desc).append(" m").append(i).append('_').append(j).append('\n');
+        else text.append("MD: ").append(owner).append('/').append(method).append(' ').append(desc).append(' ').append(mapped).append("/m").append(i).append('_').append(j).append(" ()V\n");
+        fields.put(owner + " " + field, "f" + i + "_" + j);
+        methods.put(owner + " " + method + " " + desc, "m" + i + "_" + j);
+      }
+    }
+    BinaryMappings mappings = compile(text.toString());
+    assertEquals(classes.size(), mappings.classCount());
+    assertEquals(fields.size(), mappings.fieldCount());
+    assertEquals(methods.size(), mappings.methodCount());
+    classes.forEach((obf, mapped) -> assertEquals(mapped, mappings.mapClass(obf)));
+    fields.forEach((key, mapped) -> {
+      String[] parts = key.split(" ");
+      assertEquals(mapped, mappings.mapField(parts[0], parts[1]));
+    });
+    methods.forEach((key, mapped) -> {
+      String[] parts = key.split(" ");
+      assertEquals(mapped, mappings.mapMethod(parts[0], parts[1], parts[2]));
+    });
+    for(int i = 0; i < 3000; i++) {
+      String name = randomName(random);
+      assertEquals(classes.get(name), mappings.mapClass(name));
+      assertEquals(fields.get(name + " " + name), mappings.mapField(name, name));
+      assertEquals(methods.get(name + " " + name + " ()V"), mappings.mapMethod(name, name, "()V"));
+    }
+  }
+
+  @Test
+  void rejectsMalformedLines() throws Exception {
+    for(String line : List.of("CL: a", "FD: a b", "MD: a b c d", "MD: a/b c d e")) {
+      Path text = Files.write(dir.resolve("malformed.frg"), line.getBytes(StandardCharsets.UTF_8));
+      IOException e = assertThrows(IOException.class, () -> BinaryMappings.compile(text, dir.resolve("malformed.bin")));
+      assertTrue(e.getMessage().endsWith(":1: " + line), e.getMessage());
+    }
+  }
+
+  @Test
+  void compilesEmptyFiles() throws Exception {
+    BinaryMappings mappings = compile("# nothing here");
+    assertEquals(0, mappings.classCount());
+    assertNull(mappings.mapClass("a"));
+    assertNull(mappings.mapField("a", "b"));
+    assertNull(mappings.mapMethod("a", "b", "()V"));
+  }
+
+  private BinaryMappings compile(String... lines) throws IOException {
+    Path text = Files.write(dir.resolve("mappings.frg"), String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+    Path binary = dir.resolve("mappings.bin");
+    BinaryMappings.compile(text, binary);
+    return BinaryMappings.open(binary);
+  }
+
+  private static String randomName(Random random) {
+    StringBuilder name = new StringBuilder();
+    for(int i = 2 + random.nextInt(3); i > 0; i--) name.append((char) ('a' + random.nextInt(26)));
+    return name.toString();
+  }
+
+  /**
+   * Searches for two names with equal FNV-1a hashes as computed by {@link BinaryMappings}, so that they share a slot
+   * within any index.
+   */
+  private static String[] findCollision() {
+    Map<Integer, String> seen = new HashMap<>();
+    for(int i = 0; ; i++) {
+      String name = "c" + i;
+      String previous = seen.putIfAbsent(fnv(name), name);
+      if(previous != null) return new String[]{previous, name};
+    }
+  }
+
+  private static int fnv(String name) {
+    int hash = 0x811c9dc5;
+    for(byte b : name.getBytes(StandardCharsets.UTF_8)) hash = (hash ^ (b & 0xff)) * 0x01000193;
+    return hash * 0x01000193;
+  }
+}
@@ -0,0 +1,67 @@
+package de.heisluft.modding.tasks;
+
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs consecutive DeobfTools steps of a {@link JarPipeline} one after another within the same worker. Compiled for
+ * Java 8 like {@link MainClassWorkAction}.
+ */
+public abstract class JarPipelineWorkAction implements WorkAction<JarPipelineWorkAction.Parameters> {
+  public static final String RESTORE_META = "restoreMeta", REMAP = "remap", APPLY_ATS = "applyAts";
+
+  public interface Parameters extends WorkParameters {
+    RegularFileProperty getInput();
+    RegularFileProperty getOutput();
+    RegularFileProperty getMappings();
+    RegularFileProperty getATFile();
+    ListProperty<String> getStages();
+    DirectoryProperty getTempDir();
+  }
+
+  @Override
+  public void execute() {
+    Parameters params = getParameters();
+    List<String> stages = params.getStages().get();
+    ClassLoader loader = getClass().getClassLoader();
+    File current = params.getInput().get().getAsFile();
+    File tempDir = params.getTempDir().get().getAsFile();
+    try {
+      for(int i = 0; i < stages.size(); i++) {
+        String stage = stages.get(i);
+        File next = i == stages.size() - 1 ? params.getOutput().get().getAsFile() : new File(tempDir, "worker-" + i + "-" + stage + ".jar");
+        switch(stage) {
+          case RESTORE_META:
+            MainClassWorkAction.invokeMain(loader, "de.heisluft.deobf.tooling.binfix.BinFixer",
+                Arrays.asList(current.getAbsolutePath(), next.getAbsolutePath()));
+            break;
+          case REMAP:
+            MainClassWorkAction.invokeMain(loader, "de.heisluft.deobf.tooling.Remapper", Arrays.asList(
+                "remap", current.getAbsolutePath(), params.getMappings().get().getAsFile().getAbsolutePath(), "-o", next.getAbsolutePath()
+            ));
+            break;
+          case APPLY_ATS:
+            MainClassWorkAction.invokeMain(loader, "de.heisluft.deobf.tooling.at.ATApplicator", Arrays.asList(
+                current.getAbsolutePath(), params.getATFile().get().getAsFile().getAbsolutePath(), next.getAbsolutePath()
+            ));
+            break;
+          default: throw new IllegalArgumentException("Unknown pipeline step '" + stage + "'");
+        }
+        if(i > 0) Files.delete(current.toPath());
+        current = next;
+      }
+    } catch(IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package de.heisluft.modding.tasks;
+
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+import java.lang.reflect.InvocationTargetException;
+import java.security.Permission;
+import java.util.List;
+
+/**
+ * Runs the main method of a class within a Gradle worker. Used by {@link OutputtingJavaExec} to keep DeobfTools loaded
+ * within a reusable worker daemon instead of forking a fresh JVM for each invocation.
+ *
+ * <p>Worker daemons run on the Java 8 toolchain, which is why this class is compiled separately for Java 8.
+ */
+public abstract class MainClassWorkAction implements WorkAction<MainClassWorkAction.Parameters> {
+
+  public interface Parameters extends WorkParameters {
+    Property<String> getMainClass();
+    ListProperty<String> getArgs();
+  }
+
+  /**
+   * Thrown instead of exiting the JVM if a main method calls {@link System#exit(int)}.
+   */
+  private static final class ExitException extends SecurityException {
+    private static final long serialVersionUID = 1L;
+    private final int status;
+
+    private ExitException(int status) {
+      super("System.exit(" + status + ")");
+      this.status = status;
+    }
+  }
+
+  /**
+   * Keeps main methods from exiting the worker daemon, which would take down all other work it was assigned.
+   * Everything else is permitted.
+   */
+  private static final class ExitGuard extends SecurityManager {
+    @Override
+    public void checkExit(int status) {
+      throw new ExitException(status);
+    }
+
+    @Override
+    public void checkPermission(Permission perm) {}
+
+    @Override
+    public void checkPermission(Permission perm, Object context) {}
+  }
+
+  /**
+   * Invokes {@code mainClass.main(args)}. Calls to {@link System#exit(int)} end the invocation instead of the JVM, a
+   * status of 0 counts as success. Java 18 and newer do not allow installing the guard, there System.exit still exits.
+   *
+   * @param loader the class loader to load the main class from
+   * @param mainClass the binary name of the class to run
+   * @param args the arguments to pass
+   */
+  public static synchronized void invokeMain(ClassLoader loader, String mainClass, List<String> args) {
+    SecurityManager previous = System.getSecurityManager();
+    boolean guarded;
+    try {
+      System.setSecurityManager(new ExitGuard());
+      guarded = true;
+    } catch(UnsupportedOperationException | SecurityException e) {
+      guarded = false;
+    }
+    try {
+      Class.forName(mainClass, true, loader)
+          .getMethod("main", String[].class)
+          .invoke(null, (Object) args.toArray(new String[0]));
+    } catch(InvocationTargetException e) {
+      if(e.getCause() instanceof ExitException) {
+        int status = ((ExitException) e.getCause()).status;
+        if(status == 0) return;
+        throw new RuntimeException("Execution of " + mainClass + " failed with exit status " + status);
+      }
+      throw new RuntimeException("Execution of " + mainClass + " failed", e.getCause());
+    } catch(ReflectiveOperationException e) {
+      throw new RuntimeException("Could not run main class " + mainClass, e);
+    } finally {
+      if(guarded) System.setSecurityManager(previous);
+    }
+  }
+
+  @Override
+  public void execute() {
+    invokeMain(getClass().getClassLoader(), getParameters().getMainClass().get(), getParameters().getArgs().get());
+  }
+}